@@ -16,19 +16,29 @@
 package org.rstudio.studio.client.common.dependencies;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 
 import org.rstudio.core.client.CommandWith2Args;
 import org.rstudio.core.client.CommandWithArg;
 import org.rstudio.core.client.Debug;
 import org.rstudio.core.client.StringUtil;
+import org.rstudio.core.client.js.JsObject;
 import org.rstudio.core.client.widget.MessageDialog;
 import org.rstudio.core.client.widget.Operation;
 import org.rstudio.core.client.widget.ProgressIndicator;
 import org.rstudio.studio.client.application.events.EventBus;
 import org.rstudio.studio.client.common.GlobalDisplay;
 import org.rstudio.studio.client.common.GlobalProgressDelayer;
+import org.rstudio.studio.client.common.console.ConsoleOutputEvent;
 import org.rstudio.studio.client.common.console.ConsoleProcess;
 import org.rstudio.studio.client.common.console.ProcessExitEvent;
 import org.rstudio.studio.client.common.dependencies.events.InstallShinyEvent;
@@ -37,34 +47,56 @@ import org.rstudio.studio.client.common.dependencies.model.DependencyServerOpera
 import org.rstudio.studio.client.server.ServerError;
 import org.rstudio.studio.client.server.ServerRequestCallback;
 import org.rstudio.studio.client.workbench.commands.Commands;
+import org.rstudio.studio.client.workbench.events.SessionInitEvent;
+import org.rstudio.studio.client.workbench.events.SessionInitHandler;
+import org.rstudio.studio.client.workbench.model.ClientState;
 import org.rstudio.studio.client.workbench.model.Session;
+import org.rstudio.studio.client.workbench.model.SessionInfo;
+import org.rstudio.studio.client.workbench.model.helper.JSObjectStateValue;
 import org.rstudio.studio.client.workbench.views.packages.events.PackageStateChangedEvent;
 import org.rstudio.studio.client.workbench.views.packages.events.PackageStateChangedHandler;
+import org.rstudio.studio.client.workbench.views.packages.model.PackageInfo;
+import org.rstudio.studio.client.workbench.views.packages.model.PackageState;
 import org.rstudio.studio.client.workbench.views.vcs.common.ConsoleProgressDialog;
 
+import com.google.gwt.core.client.GWT;
 import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.core.client.JsArray;
+import com.google.gwt.core.client.JsArrayString;
+import com.google.gwt.core.client.JsonUtils;
+import com.google.gwt.regexp.shared.MatchResult;
+import com.google.gwt.regexp.shared.RegExp;
+import com.google.gwt.resources.client.ClientBundle;
+import com.google.gwt.resources.client.TextResource;
 import com.google.gwt.user.client.Command;
+import com.google.gwt.user.client.Timer;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 /*
  * NOTICE: We keep documentation concerning which packages RStudio depends on. If you change 
- * the dependencies listed here, be sure to update the documentation in the admin guide as well.
+ * the dependencies listed in dependencies.json, be sure to update the documentation in the
+ * admin guide as well.
  */
 
 @Singleton
 public class DependencyManager implements InstallShinyEvent.Handler,
                                           PackageStateChangedHandler
 {
-   class DependencyRequest
+   /**
+    * A request to satisfy a set of dependencies. Returned to callers of
+    * withDependencies as a handle through which the request can be
+    * cancelled, e.g. when whatever it was made for has gone away.
+    */
+   public class DependencyRequest
    {
       DependencyRequest(
             String progressCaptionIn,
             String userActionIn,
             CommandWith2Args<String,CommandWithArg<Boolean>> userPromptIn,
-            Dependency[] dependenciesIn,
+            DependencySet dependenciesIn,
             boolean silentEmbeddedUpdateIn,
+            boolean backgroundIn,
             CommandWithArg<Boolean> onCompleteIn)
       {
          progressCaption = progressCaptionIn;
@@ -72,143 +104,846 @@ public class DependencyManager implements InstallShinyEvent.Handler,
          userPrompt = userPromptIn;
          dependencies = dependenciesIn;
          silentEmbeddedUpdate = silentEmbeddedUpdateIn;
+         background = backgroundIn;
          onComplete = onCompleteIn;
       }
+      
+      /**
+       * Cancels the request. Its completion command will not be executed,
+       * and if nothing else is waiting on the request it is dropped before
+       * making any further RPCs or showing any further dialogs. A prompt
+       * which is already showing stays up, but its answer is ignored.
+       */
+      public void cancel()
+      {
+         cancelled = true;
+      }
+      
+      public boolean isCancelled()
+      {
+         return cancelled;
+      }
+      
+      /**
+       * Sets how long to wait for R to report which of the request's
+       * dependencies are installed before giving up on the request.
+       */
+      public DependencyRequest setTimeout(int timeoutMs)
+      {
+         this.timeoutMs = timeoutMs;
+         return this;
+      }
+      
+      // whether anyone is still waiting on the outcome of the request,
+      // either the request itself or one coalesced into it
+      boolean isLive()
+      {
+         if (!cancelled)
+            return true;
+         for (DependencyRequest follower: coalesced)
+         {
+            if (!follower.cancelled)
+               return true;
+         }
+         return false;
+      }
+      
+      // whether a request for the same dependencies can simply wait on
+      // the outcome of this one, rather than prompting again
+      boolean canCoalesce(DependencyRequest other)
+      {
+         return dependencies == other.dependencies &&
+                silentEmbeddedUpdate == other.silentEmbeddedUpdate &&
+                userPrompt == null && other.userPrompt == null &&
+                (userAction == null ? 
+                      other.userAction == null : 
+                      userAction.equals(other.userAction));
+      }
+      
       String progressCaption;
       String userAction;
       CommandWith2Args<String,CommandWithArg<Boolean>> userPrompt;
-      Dependency[] dependencies;
+      DependencySet dependencies;
       boolean silentEmbeddedUpdate;
+      boolean background;
       CommandWithArg<Boolean> onComplete;
+      boolean cancelled;
+      boolean completed;
+      final long createdAt = System.currentTimeMillis();
+      long queuedAt;
+      int timeoutMs = DEFAULT_REQUEST_TIMEOUT_MS;
+      Timer deadline;
+      final ArrayList<DependencyRequest> coalesced = 
+            new ArrayList<DependencyRequest>();
+      JsArray<Dependency> unchecked;
+      JsArray<Dependency> unavailable;
+      JsArray<Dependency> unsatisfied;
    }
    
-   @Inject
-   public DependencyManager(GlobalDisplay globalDisplay,
-                            DependencyServerOperations server,
-                            EventBus eventBus,
-                            Session session,
-                            Commands commands)
+   /**
+    * An immutable set of dependencies, together with the keys under which
+    * each is stored in the cache of satisfied dependencies. The sets needed
+    * by the with* methods are built once and shared by every request.
+    */
+   static class DependencySet
    {
-      globalDisplay_ = globalDisplay;
-      server_ = server;
-      satisfied_ = new ArrayList<Dependency>();
-      requestQueue_ = new LinkedList<DependencyRequest>();
-      session_ = session;
-      commands_ = commands;
+      DependencySet(Dependency... dependencies)
+      {
+         // copy the caller's array, so that reusing it can't change the set
+         // (or leave its keys stale)
+         dependencies_ = new Dependency[dependencies.length];
+         System.arraycopy(dependencies, 0, dependencies_, 0, dependencies.length);
+         keys_ = new String[dependencies_.length];
+         for (int i = 0; i < dependencies_.length; i++)
+            keys_[i] = satisfiedKey(dependencies_[i]);
+         list_ = Collections.unmodifiableList(Arrays.asList(dependencies_));
+      }
       
-      eventBus.addHandler(InstallShinyEvent.TYPE, this);
-      eventBus.addHandler(PackageStateChangedEvent.TYPE, this);
+      int size()
+      {
+         return dependencies_.length;
+      }
+      
+      Dependency get(int i)
+      {
+         return dependencies_[i];
+      }
+      
+      String key(int i)
+      {
+         return keys_[i];
+      }
+      
+      List<Dependency> asList()
+      {
+         return list_;
+      }
+      
+      Dependency[] toArray()
+      {
+         Dependency[] copy = new Dependency[dependencies_.length];
+         System.arraycopy(dependencies_, 0, copy, 0, dependencies_.length);
+         return copy;
+      }
+      
+      private final Dependency[] dependencies_;
+      private final String[] keys_;
+      private final List<Dependency> list_;
    }
    
-   public void withDependencies(String progressCaption,
-        CommandWith2Args<String,CommandWithArg<Boolean>> userPrompt,
-        Dependency[] dependencies, 
-        boolean silentEmbeddedUpdate,
-        CommandWithArg<Boolean> onComplete)
+   /**
+    * Measurements of how dependency requests are being served: how often
+    * packages are found in the cache, how long requests wait in the queue,
+    * and how long checks and installs take. Snapshots are taken with
+    * getMetrics(), and a summary is written to the log periodically.
+    */
+   public static class DependencyMetrics
    {
-      withDependencies(progressCaption,
-                       null,
-                       userPrompt,
-                       dependencies,
-                       silentEmbeddedUpdate,
-                       onComplete);
+      public static class Timing
+      {
+         void record(long ms)
+         {
+            // keep the most recent samples, from which percentiles are
+            // computed, in a ring
+            samples_[count_ % samples_.length] = ms;
+            count_++;
+            totalMs_ += ms;
+            maxMs_ = Math.max(maxMs_, ms);
+         }
+         
+         Timing copy()
+         {
+            Timing timing = new Timing();
+            timing.count_ = count_;
+            timing.totalMs_ = totalMs_;
+            timing.maxMs_ = maxMs_;
+            System.arraycopy(samples_, 0, timing.samples_, 0, samples_.length);
+            return timing;
+         }
+         
+         public int getCount()
+         {
+            return count_;
+         }
+         
+         public long getTotalMs()
+         {
+            return totalMs_;
+         }
+         
+         public long getMeanMs()
+         {
+            return count_ == 0 ? 0 : totalMs_ / count_;
+         }
+         
+         public long getMaxMs()
+         {
+            return maxMs_;
+         }
+         
+         /**
+          * Computes a percentile (e.g. 95) of the most recent samples, by
+          * the nearest-rank method.
+          */
+         public long getPercentileMs(int percentile)
+         {
+            int n = Math.min(count_, samples_.length);
+            if (n == 0)
+               return 0;
+            
+            long[] sorted = new long[n];
+            System.arraycopy(samples_, 0, sorted, 0, n);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100.0 * n);
+            return sorted[Math.max(0, Math.min(n, rank) - 1)];
+         }
+         
+         @Override
+         public String toString()
+         {
+            return count_ + " (mean " + getMeanMs() + "ms, p95 " + 
+                   getPercentileMs(95) + "ms, max " + maxMs_ + "ms)";
+         }
+         
+         private int count_;
+         private long totalMs_;
+         private long maxMs_;
+         private final long[] samples_ = new long[MAX_SAMPLES];
+         
+         private static final int MAX_SAMPLES = 256;
+      }
+      
+      void recordCacheLookup(String packageName, boolean hit)
+      {
+         HashMap<String, Integer> counts = hit ? cacheHits_ : cacheMisses_;
+         Integer count = counts.get(packageName);
+         counts.put(packageName, count == null ? 1 : count + 1);
+         updates_++;
+      }
+      
+      void recordQueueDepth(int depth)
+      {
+         queueDepth_ = depth;
+         maxQueueDepth_ = Math.max(maxQueueDepth_, depth);
+      }
+      
+      void recordInstallDuration(String packageName, long ms)
+      {
+         Timing timing = installDurations_.get(packageName);
+         if (timing == null)
+         {
+            timing = new Timing();
+            installDurations_.put(packageName, timing);
+         }
+         timing.record(ms);
+         updates_++;
+      }
+      
+      DependencyMetrics copy()
+      {
+         DependencyMetrics metrics = new DependencyMetrics();
+         metrics.cacheHits_.putAll(cacheHits_);
+         metrics.cacheMisses_.putAll(cacheMisses_);
+         metrics.queueDepth_ = queueDepth_;
+         metrics.maxQueueDepth_ = maxQueueDepth_;
+         metrics.startedAt_ = startedAt_;
+         metrics.requestLatency_ = requestLatency_.copy();
+         metrics.queueWait_ = queueWait_.copy();
+         metrics.checkLatency_ = checkLatency_.copy();
+         metrics.installLatency_ = installLatency_.copy();
+         for (Map.Entry<String, Timing> entry: installDurations_.entrySet())
+            metrics.installDurations_.put(entry.getKey(), entry.getValue().copy());
+         metrics.updates_ = updates_;
+         return metrics;
+      }
+      
+      /**
+       * The number of times each package was found in the cache, i.e.
+       * without asking R whether it is installed.
+       */
+      public Map<String, Integer> getCacheHits()
+      {
+         return Collections.unmodifiableMap(cacheHits_);
+      }
+      
+      /**
+       * The number of times each package had to be checked with R.
+       */
+      public Map<String, Integer> getCacheMisses()
+      {
+         return Collections.unmodifiableMap(cacheMisses_);
+      }
+      
+      public int getQueueDepth()
+      {
+         return queueDepth_;
+      }
+      
+      public int getMaxQueueDepth()
+      {
+         return maxQueueDepth_;
+      }
+      
+      /**
+       * How long requests took from being made to being completed.
+       */
+      public Timing getRequestLatency()
+      {
+         return requestLatency_;
+      }
+      
+      /**
+       * The number of requests completed per minute since the metrics
+       * started being collected.
+       */
+      public double getRequestsPerMinute()
+      {
+         long elapsedMs = System.currentTimeMillis() - startedAt_;
+         return elapsedMs <= 0 ? 0 : requestLatency_.getCount() * 60000.0 / elapsedMs;
+      }
+      
+      /**
+       * How long requests waited in the queue before being resolved.
+       */
+      public Timing getQueueWait()
+      {
+         return queueWait_;
+      }
+      
+      /**
+       * How long R took to answer unsatisfiedDependencies.
+       */
+      public Timing getCheckLatency()
+      {
+         return checkLatency_;
+      }
+      
+      /**
+       * How long R took to start the install process in response to
+       * installDependencies.
+       */
+      public Timing getInstallLatency()
+      {
+         return installLatency_;
+      }
+      
+      /**
+       * How long installs of each package took, as followed in the output
+       * of the install process; or, where the package's progress couldn't be
+       * followed, the duration of the whole install process.
+       */
+      public Map<String, Timing> getInstallDurations()
+      {
+         return Collections.unmodifiableMap(installDurations_);
+      }
+      
+      @Override
+      public String toString()
+      {
+         int hits = 0;
+         for (Integer count: cacheHits_.values())
+            hits += count;
+         int misses = 0;
+         for (Integer count: cacheMisses_.values())
+            misses += count;
+         
+         return "Dependency metrics: " +
+                "requests " + requestLatency_ + ", " + 
+                Math.round(getRequestsPerMinute()) + "/min; " +
+                "cache hits " + hits + ", misses " + misses + "; " +
+                "queue depth " + queueDepth_ + " (max " + maxQueueDepth_ + 
+                "), waits " + queueWait_ + "; " +
+                "checks " + checkLatency_ + "; " +
+                "installs " + installLatency_ + "; " +
+                "installed packages " + installDurations_.size();
+      }
+      
+      private final HashMap<String, Integer> cacheHits_ = 
+            new HashMap<String, Integer>();
+      private final HashMap<String, Integer> cacheMisses_ = 
+            new HashMap<String, Integer>();
+      private long startedAt_ = System.currentTimeMillis();
+      private Timing requestLatency_ = new Timing();
+      private int queueDepth_;
+      private int maxQueueDepth_;
+      private Timing queueWait_ = new Timing();
+      private Timing checkLatency_ = new Timing();
+      private Timing installLatency_ = new Timing();
+      private final HashMap<String, Timing> installDurations_ = 
+            new HashMap<String, Timing>();
+      
+      // changes whenever a lookup or install is recorded, so that the
+      // periodic log line is only written when there's something new
+      int updates_;
    }
    
-   public void withDependencies(String progressCaption,
-                                String userAction,
-                                Dependency[] dependencies, 
-                                boolean silentEmbeddedUpdate,
-                                final CommandWithArg<Boolean> onComplete)
+   /**
+    * The stages a package passes through while being installed, as
+    * reported by the install process.
+    */
+   public enum PackageInstallState
    {
-      withDependencies(progressCaption, 
-                       userAction, 
-                       null, 
-                       dependencies, 
-                       silentEmbeddedUpdate,
-                       onComplete);
+      QUEUED,
+      DOWNLOADING,
+      COMPILING,
+      INSTALLED,
+      FAILED
    }
    
-   public void withRoxygen(String progressCaption, String userAction, final Command command)
-   {
-      withDependencies(
-            progressCaption,
-            userAction,
-            new Dependency[] {
-                  Dependency.cranPackage("roxygen2", "6.0.1")
-            },
-            false,
-            succeeded -> { if (succeeded) command.execute(); });
+   public interface InstallProgressHandler
+   {
+      /**
+       * Called as each package being installed changes state.
+       * 
+       * @param packageName The package
+       * @param state The state the package has entered
+       * @param elapsedMs How long the package has been in progress: since
+       *   it was first mentioned by the install process, or since the
+       *   process started if it wasn't mentioned before this state
+       */
+      void onInstallProgress(String packageName, 
+                             PackageInstallState state,
+                             long elapsedMs);
    }
    
-   public void withThemes(String userAction, final Command command)
+   /**
+    * Follows the output of an install.packages() process, reporting each
+    * package's progress as it is installed rather than only learning the
+    * outcome once the process has exited.
+    */
+   static class InstallProgress
    {
-      withDependencies(
-         "Converting Theme",
-         userAction,
-         new Dependency[] {
-            Dependency.cranPackage("xml2", "1.2.0")
-         },
-         true,
-         succeeded ->
+      InstallProgress(InstallProgressHandler handler)
+      {
+         handler_ = handler;
+         started_ = System.currentTimeMillis();
+      }
+      
+      void onOutput(String output)
+      {
+         // output arrives in arbitrary chunks, so hold on to any incomplete
+         // line until the rest of it arrives
+         String[] lines = (pending_ + output).split("\r?\n", -1);
+         for (int i = 0; i < lines.length - 1; i++)
+            onLine(lines[i]);
+         pending_ = lines[lines.length - 1];
+      }
+      
+      /**
+       * The latest state of each package the install process has mentioned.
+       */
+      Map<String, PackageInstallState> getStates()
+      {
+         return Collections.unmodifiableMap(states_);
+      }
+      
+      private void onLine(String line)
+      {
+         MatchResult match = QUEUED_LINE.exec(line);
+         if (match != null)
          {
-            if (succeeded)
-               command.execute();
-         });
+            // "also installing the dependencies 'a', 'b'"
+            RegExp quoted = RegExp.compile(QUOTED_PACKAGE, "g");
+            for (MatchResult pkg = quoted.exec(match.getGroup(1)); 
+                 pkg != null; 
+                 pkg = quoted.exec(match.getGroup(1)))
+            {
+               update(pkg.getGroup(1), PackageInstallState.QUEUED);
+            }
+            return;
+         }
+         
+         match = DOWNLOADING_LINE.exec(line);
+         if (match != null)
+         {
+            update(match.getGroup(1), PackageInstallState.DOWNLOADING);
+            return;
+         }
+         
+         match = COMPILING_LINE.exec(line);
+         if (match != null)
+         {
+            update(match.getGroup(1), PackageInstallState.COMPILING);
+            return;
+         }
+         
+         match = INSTALLED_LINE.exec(line);
+         if (match != null)
+         {
+            update(match.getGroup(1), PackageInstallState.INSTALLED);
+            return;
+         }
+         
+         match = FAILED_LINE.exec(line);
+         if (match == null)
+            match = FAILED_EXIT_LINE.exec(line);
+         if (match != null)
+            update(match.getGroup(1), PackageInstallState.FAILED);
+      }
+      
+      private void update(String packageName, PackageInstallState state)
+      {
+         // a package which has finished doesn't change state again (e.g.
+         // when R warns about a failure it has already reported)
+         PackageInstallState previous = states_.get(packageName);
+         if (previous == state ||
+             previous == PackageInstallState.INSTALLED ||
+             previous == PackageInstallState.FAILED)
+            return;
+         states_.put(packageName, state);
+         
+         long now = System.currentTimeMillis();
+         Long firstSeen = firstSeen_.get(packageName);
+         if (firstSeen == null)
+            firstSeen_.put(packageName, now);
+         long since = firstSeen == null ? started_ : firstSeen;
+         handler_.onInstallProgress(packageName, state, now - since);
+      }
+      
+      private final InstallProgressHandler handler_;
+      private final long started_;
+      private String pending_ = "";
+      private final LinkedHashMap<String, PackageInstallState> states_ = 
+            new LinkedHashMap<String, PackageInstallState>();
+      private final HashMap<String, Long> firstSeen_ = 
+            new HashMap<String, Long>();
+      
+      // package names may be quoted with plain or typographic quotes,
+      // depending on the locale R is running in
+      private static final String QUOTED_PACKAGE = 
+            "[\u2018'\"]([A-Za-z0-9.]+)[\u2019'\"]";
+      private static final RegExp QUEUED_LINE = RegExp.compile(
+            "installing the (?:source )?(?:packages?|dependenc(?:y|ies)) (.*)$");
+      private static final RegExp DOWNLOADING_LINE = RegExp.compile(
+            "^trying URL '.*/([A-Za-z0-9.]+)_[^/_]+\\.(?:tar\\.gz|tgz|zip)'");
+      private static final RegExp COMPILING_LINE = RegExp.compile(
+            "^\\* installing \\*\\w+\\* package " + QUOTED_PACKAGE);
+      private static final RegExp INSTALLED_LINE = RegExp.compile(
+            "^\\* DONE \\(([A-Za-z0-9.]+)\\)");
+      private static final RegExp FAILED_LINE = RegExp.compile(
+            "^ERROR: .*package " + QUOTED_PACKAGE);
+      private static final RegExp FAILED_EXIT_LINE = RegExp.compile(
+            "installation of package " + QUOTED_PACKAGE + 
+            " had non-zero exit status");
    }
    
-   public void withR2D3(String userAction, final Command command)
+   /**
+    * The dependency sets declared in dependencies.json, parsed once and
+    * indexed by name. Each entry of a set is either a package or an 
+    * "include" of another set, by name.
+    */
+   static class DependencyManifest
    {
-      withDependencies(
-        "R2D3",
-         userAction,
-         new Dependency[] {
-            Dependency.cranPackage("htmltools", "0.3.6"),
-            Dependency.cranPackage("htmlwidgets", "1.2", true),
-            Dependency.cranPackage("jsonlite", "0.9.19"),
-            Dependency.cranPackage("r2d3", "0.2.2", true)
-         },
-         true,
-         succeeded ->
+      DependencyManifest(String json)
+      {
+         manifest_ = JsonUtils.safeEval(json);
+         sets_ = new HashMap<String, DependencySet>();
+         
+         // index the sets, keeping the order in which they were declared
+         LinkedHashMap<String, List<Dependency>> lists = 
+               new LinkedHashMap<String, List<Dependency>>();
+         JsArrayString names = manifest_.getSetNames();
+         for (int i = 0; i < names.length(); i++)
+            lists.put(names.get(i), resolve(names.get(i)).asList());
+         lists_ = Collections.unmodifiableMap(lists);
+      }
+      
+      Map<String, List<Dependency>> asMap()
+      {
+         return lists_;
+      }
+      
+      boolean has(String name)
+      {
+         return sets_.containsKey(name);
+      }
+      
+      DependencySet get(String name)
+      {
+         DependencySet set = sets_.get(name);
+         if (set == null)
+            throw new IllegalArgumentException(
+                  "Unknown dependency set '" + name + "'");
+         return set;
+      }
+      
+      private DependencySet resolve(String name)
+      {
+         DependencySet set = sets_.get(name);
+         if (set != null)
+            return set;
+         
+         JsArray<ManifestEntry> entries = manifest_.getSet(name);
+         if (entries == null)
+            throw new IllegalArgumentException(
+                  "Unknown dependency set '" + name + "'");
+         
+         ArrayList<Dependency> deps = new ArrayList<Dependency>();
+         for (int i = 0; i < entries.length(); i++)
          {
-            if (succeeded)
-               command.execute();
-         });
+            ManifestEntry entry = entries.get(i);
+            if (entry.getInclude() != null)
+            {
+               DependencySet included = resolve(entry.getInclude());
+               for (int j = 0; j < included.size(); j++)
+                  deps.add(included.get(j));
+            }
+            else if (entry.isEmbedded())
+            {
+               deps.add(Dependency.embeddedPackage(entry.getName()));
+            }
+            else
+            {
+               deps.add(Dependency.cranPackage(entry.getName(), 
+                                               entry.getVersion(),
+                                               entry.isSource()));
+            }
+         }
+         
+         set = new DependencySet(deps.toArray(new Dependency[deps.size()]));
+         sets_.put(name, set);
+         return set;
+      }
+      
+      private final Manifest manifest_;
+      private final HashMap<String, DependencySet> sets_;
+      private final Map<String, List<Dependency>> lists_;
    }
    
-   public void withRPlumber(String userAction, final Command command)
+   static class Manifest extends JavaScriptObject
    {
-      withDependencies(
-        "Plumber",
-         userAction,
-         new Dependency[] {
-            Dependency.cranPackage("R6", "2.0"),
-            Dependency.cranPackage("stringi", "0.3.0"),
-            Dependency.cranPackage("jsonlite", "0.9.19"),
-            Dependency.cranPackage("httpuv", "1.3.3"),
-            Dependency.cranPackage("crayon", "1.3.4"),
-            Dependency.cranPackage("plumber", "0.4.6", true)
-         },
-         true,
-         new CommandWithArg<Boolean>()
-        {
-           @Override
-           public void execute(Boolean succeeded)
-           {
-              if (succeeded)
-                 command.execute();
+      protected Manifest()
+      {
+      }
+      
+      public final native JsArrayString getSetNames() /*-{
+         return Object.keys(this);
+      }-*/;
+      
+      public final native JsArray<ManifestEntry> getSet(String name) /*-{
+         return this[name] || null;
+      }-*/;
+   }
+   
+   static class ManifestEntry extends JavaScriptObject
+   {
+      protected ManifestEntry()
+      {
+      }
+      
+      public final native String getName() /*-{
+         return this.name;
+      }-*/;
+      
+      public final native String getVersion() /*-{
+         return this.version || "";
+      }-*/;
+      
+      public final native boolean isSource() /*-{
+         return !!this.source;
+      }-*/;
+      
+      public final native boolean isEmbedded() /*-{
+         return !!this.embedded;
+      }-*/;
+      
+      public final native String getInclude() /*-{
+         return this.include || null;
+      }-*/;
+   }
+   
+   interface Resources extends ClientBundle
+   {
+      @Source("dependencies.json")
+      TextResource dependencies();
+   }
+   
+   @Inject
+   public DependencyManager(GlobalDisplay globalDisplay,
+                            DependencyServerOperations server,
+                            EventBus eventBus,
+                            Session session,
+                            Commands commands)
+   {
+      globalDisplay_ = globalDisplay;
+      server_ = server;
+      satisfied_ = new HashMap<String, String>();
+      unavailable_ = new HashMap<String, Dependency>();
+      requestQueue_ = new LinkedList<DependencyRequest>();
+      pendingChecks_ = new ArrayList<DependencyRequest>();
+      pendingInstalls_ = new ArrayList<DependencyRequest>();
+      pendingInstallDeps_ = new LinkedHashMap<String, Dependency>();
+      checkTimer_ = new Timer()
+      {
+         @Override
+         public void run()
+         {
+            flushPendingChecks();
+         }
+      };
+      installTimer_ = new Timer()
+      {
+         @Override
+         public void run()
+         {
+            installPendingDependencies();
+         }
+      };
+      session_ = session;
+      commands_ = commands;
+      
+      metrics_ = new DependencyMetrics();
+      installProgressHandlers_ = new ArrayList<InstallProgressHandler>();
+      new Timer()
+      {
+         private int loggedUpdates_ = 0;
+         
+         @Override
+         public void run()
+         {
+            if (metrics_.updates_ == loggedUpdates_)
+               return;
+            loggedUpdates_ = metrics_.updates_;
+            Debug.log(metrics_.toString());
+         }
+      }.scheduleRepeating(METRICS_LOG_INTERVAL_MS);
+      
+      eventBus.addHandler(InstallShinyEvent.TYPE, this);
+      eventBus.addHandler(PackageStateChangedEvent.TYPE, this);
+      
+      // restore the satisfied dependencies recorded by earlier sessions as
+      // soon as the client state is available
+      if (session_.getSessionInfo() != null)
+      {
+         onSessionInit();
+      }
+      else
+      {
+         eventBus.addHandler(SessionInitEvent.TYPE, new SessionInitHandler()
+         {
+            @Override
+            public void onSessionInit(SessionInitEvent sie)
+            {
+               DependencyManager.this.onSessionInit();
+            }
+         });
+      }
+   }
+   
+   private void onSessionInit()
+   {
+      initPersistedSatisfied();
+      
+      // deployments opt in to warming the cache by declaring a "prefetch"
+      // set in dependencies.json
+      if (MANIFEST.has(PREFETCH_SET))
+         prefetchDependencies();
+   }
+   
+   public DependencyRequest withDependencies(String progressCaption,
+        CommandWith2Args<String,CommandWithArg<Boolean>> userPrompt,
+        Dependency[] dependencies, 
+        boolean silentEmbeddedUpdate,
+        CommandWithArg<Boolean> onComplete)
+   {
+      return withDependencies(progressCaption,
+                       null,
+                       userPrompt,
+                       new DependencySet(dependencies),
+                       silentEmbeddedUpdate,
+                       onComplete);
+   }
+   
+   public DependencyRequest withDependencies(String progressCaption,
+                                String userAction,
+                                Dependency[] dependencies, 
+                                boolean silentEmbeddedUpdate,
+                                final CommandWithArg<Boolean> onComplete)
+   {
+      return withDependencies(progressCaption, 
+                       userAction, 
+                       new DependencySet(dependencies), 
+                       silentEmbeddedUpdate,
+                       onComplete);
+   }
+   
+   private DependencyRequest withDependencies(String progressCaption,
+                                 String userAction,
+                                 DependencySet dependencies, 
+                                 boolean silentEmbeddedUpdate,
+                                 final CommandWithArg<Boolean> onComplete)
+   {
+      return withDependencies(progressCaption, 
+                       userAction, 
+                       null, 
+                       dependencies, 
+                       silentEmbeddedUpdate,
+                       onComplete);
+   }
+   
+   public void withRoxygen(String progressCaption, String userAction, final Command command)
+   {
+      withDependencies(
+            progressCaption,
+            userAction,
+            dependencySet("roxygen"),
+            false,
+            succeeded -> { if (succeeded) command.execute(); });
+   }
+   
+   public void withThemes(String userAction, final Command command)
+   {
+      withDependencies(
+         "Converting Theme",
+         userAction,
+         dependencySet("themes"),
+         true,
+         succeeded ->
+         {
+            if (succeeded)
+               command.execute();
+         });
+   }
+   
+   public void withR2D3(String userAction, final Command command)
+   {
+      withDependencies(
+        "R2D3",
+         userAction,
+         dependencySet("r2d3"),
+         true,
+         succeeded ->
+         {
+            if (succeeded)
+               command.execute();
+         });
+   }
+   
+   public void withRPlumber(String userAction, final Command command)
+   {
+      withDependencies(
+        "Plumber",
+         userAction,
+         dependencySet("plumber"),
+         true,
+         new CommandWithArg<Boolean>()
+        {
+           @Override
+           public void execute(Boolean succeeded)
+           {
+              if (succeeded)
+                 command.execute();
            }
         }
       );
    }
-
+   
    public void withPackrat(String userAction, final Command command)
    {
       withDependencies(
          "Packrat",
          userAction,
-         new Dependency[] {
-            Dependency.cranPackage("packrat", "0.4.8-1", true)
-         },
+         dependencySet("packrat"),
          false,
          new CommandWithArg<Boolean>()
          {
@@ -226,9 +961,7 @@ public class DependencyManager implements InstallShinyEvent.Handler,
       withDependencies(
             "renv",
             userAction,
-            new Dependency[] {
-                  Dependency.embeddedPackage("renv")
-            },
+            dependencySet("renv"),
             false,
             onSuccess);
    }
@@ -238,23 +971,11 @@ public class DependencyManager implements InstallShinyEvent.Handler,
          CommandWith2Args<String, CommandWithArg<Boolean>> userPrompt, 
          final CommandWithArg<Boolean> onCompleted)
    {
-      // build dependency array
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("RCurl", "1.95"));
-      deps.add(Dependency.cranPackage("jsonlite", "1.5"));
-      deps.add(Dependency.cranPackage("openssl", "1.0.2"));
-      deps.add(Dependency.cranPackage("rstudioapi", "0.10"));
-      deps.add(Dependency.cranPackage("yaml", "2.1.5"));
-      if (requiresRmarkdown)
-         deps.addAll(rmarkdownDependencies());
-      deps.add(Dependency.cranPackage("packrat", "0.4.8-1", true));
-      deps.add(Dependency.cranPackage("rsconnect", "0.8.15"));
-      
       withDependencies(
         "Publishing",
         userAction,
         userPrompt,
-        deps.toArray(new Dependency[deps.size()]),
+        dependencySet(requiresRmarkdown ? "rsconnect-rmarkdown" : "rsconnect"),
         true, // silently update any embedded packages needed (none at present)
         onCompleted
       );
@@ -285,7 +1006,7 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      withDependencies(
         progressCaption,
         userAction, 
-        rmarkdownDependenciesArray(), 
+        dependencySet("rmarkdown"), 
         true, // we want to update to the embedded version if needed
         succeeded -> 
         {
@@ -307,33 +1028,12 @@ public class DependencyManager implements InstallShinyEvent.Handler,
 
    public static List<Dependency> rmarkdownDependencies()
    {
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("Rcpp", "0.11.5"));
-      deps.add(Dependency.cranPackage("base64enc", "0.1-3"));
-      deps.add(Dependency.cranPackage("digest", "0.6"));
-      deps.add(Dependency.cranPackage("evaluate", "0.13"));
-      deps.add(Dependency.cranPackage("glue", "1.3.0"));
-      deps.add(Dependency.cranPackage("highr", "0.3"));
-      deps.add(Dependency.cranPackage("htmltools", "0.3.5"));
-      deps.add(Dependency.cranPackage("jsonlite", "0.9.19"));
-      deps.add(Dependency.cranPackage("knitr", "1.22"));
-      deps.add(Dependency.cranPackage("magrittr", "1.5"));
-      deps.add(Dependency.cranPackage("markdown", "0.7"));
-      deps.add(Dependency.cranPackage("mime", "0.5"));
-      deps.add(Dependency.cranPackage("rmarkdown", "1.12"));
-      deps.add(Dependency.cranPackage("rprojroot", "1.0"));
-      deps.add(Dependency.cranPackage("stringi", "1.2.4"));
-      deps.add(Dependency.cranPackage("stringr", "1.2.0"));
-      deps.add(Dependency.cranPackage("tinytex", "0.11"));
-      deps.add(Dependency.cranPackage("xfun", "0.3"));
-      deps.add(Dependency.cranPackage("yaml", "2.1.19"));
-      return deps;
+      return dependencySet("rmarkdown").asList();
    }
    
    public static Dependency[] rmarkdownDependenciesArray()
    {
-      List<Dependency> deps = rmarkdownDependencies();
-      return deps.toArray(new Dependency[deps.size()]);
+      return dependencySet("rmarkdown").toArray();
    }
  
    public void withShiny(final String userAction, final Command command)
@@ -374,8 +1074,9 @@ public class DependencyManager implements InstallShinyEvent.Handler,
        // perform dependency resolution 
        withDependencies(
           "Checking installed packages",
+          null,
           userPrompt,
-          shinyDependenciesArray(),
+          dependencySet("shiny"),
           true,
           new CommandWithArg<Boolean>()
           {
@@ -391,16 +1092,15 @@ public class DependencyManager implements InstallShinyEvent.Handler,
    
    public void withShinyAddins(final Command command)
    {
-      // define dependencies
-      ArrayList<Dependency> deps = shinyDependencies(); // htmltools version
-      deps.add(Dependency.cranPackage("miniUI", "0.1.1", true));
-      deps.add(Dependency.cranPackage("rstudioapi", "0.10", true));
-      
+      // addins are checked in the background, so they mustn't hold up
+      // requests the user is waiting on
       withDependencies(   
         "Checking installed packages",
         "Executing addins", 
-        deps.toArray(new Dependency[deps.size()]),
+        null,
+        dependencySet("shiny-addins"),
         false,
+        true,
         new CommandWithArg<Boolean>()
         {
          @Override
@@ -413,32 +1113,6 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      );
    }
    
-   private Dependency[] shinyDependenciesArray()
-   {
-      ArrayList<Dependency> deps = shinyDependencies();
-      return deps.toArray(new Dependency[deps.size()]);
-   }
-
-   private ArrayList<Dependency> shinyDependencies()
-   {
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("Rcpp", "0.11.5"));
-      deps.add(Dependency.cranPackage("httpuv", "1.4.4"));
-      deps.add(Dependency.cranPackage("mime", "0.5"));
-      deps.add(Dependency.cranPackage("jsonlite", "0.9.19"));
-      deps.add(Dependency.cranPackage("xtable", "1.7"));
-      deps.add(Dependency.cranPackage("digest", "0.6"));
-      deps.add(Dependency.cranPackage("R6", "2.0"));
-      deps.add(Dependency.cranPackage("sourcetools", "0.1.5"));
-      deps.add(Dependency.cranPackage("htmltools", "0.3.5"));
-      deps.add(Dependency.cranPackage("promises", "1.0.1"));
-      deps.add(Dependency.cranPackage("crayon", "1.3.4"));
-      deps.add(Dependency.cranPackage("rlang", "0.2.2"));
-      deps.add(Dependency.cranPackage("later", "0.7.2"));
-      deps.add(Dependency.cranPackage("shiny", "1.2.0", true));
-      return deps;
-   }
-   
    @Override
    public void onInstallShiny(InstallShinyEvent event)
    {
@@ -453,11 +1127,7 @@ public class DependencyManager implements InstallShinyEvent.Handler,
       withDependencies(
             progressCaption,
             userPrompt,
-            new Dependency[] {
-                  Dependency.cranPackage("jsonlite", "0.9.19"),
-                  Dependency.cranPackage("png", "0.1-7"),
-                  Dependency.cranPackage("reticulate", "1.10"),
-            },
+            dependencySet("reticulate"),
             true,
             new CommandWithArg<Boolean>()
             {
@@ -477,9 +1147,7 @@ public class DependencyManager implements InstallShinyEvent.Handler,
       withDependencies(
             progressCaption,
             userPrompt,
-            new Dependency[] {
-                  Dependency.cranPackage("rstan", "2.15.1")
-            },
+            dependencySet("stan"),
             true,
             (Boolean success) -> { if (success) command.execute(); });
    }
@@ -491,9 +1159,7 @@ public class DependencyManager implements InstallShinyEvent.Handler,
       withDependencies(
             progressCaption,
             userPrompt,
-            new Dependency[] {
-                  Dependency.cranPackage("tinytex", "0.16")
-            },
+            dependencySet("tinytex"),
             true,
             (Boolean success) -> { if (success) command.execute(); });
    }
@@ -501,11 +1167,44 @@ public class DependencyManager implements InstallShinyEvent.Handler,
    @Override
    public void onPackageStateChanged(PackageStateChangedEvent event)
    {
-      // when the package state changes, clear the dependency cache -- this
-      // is extremely conservative as it's unlikely most (or any) of the
-      // packages have been invalidated, but it's safe to do so since it'll
-      // just cause us to hit the server once more to verify
-      satisfied_.clear();
+      // a package which couldn't be found may have been installed by other
+      // means (e.g. from a local file), so ask the server about it again
+      unavailable_.clear();
+      repositoryUnavailable_ = false;
+      
+      // if we don't know what the library looks like now, clear the whole
+      // dependency cache; this is conservative, but safe since it'll just
+      // cause us to hit the server once more to verify
+      PackageState state = event.getPackageState();
+      if (state == null || state.getPackageList() == null)
+      {
+         satisfied_.clear();
+         return;
+      }
+      
+      // otherwise find the installed version of each package; if a package
+      // is installed in more than one library, assume the lowest version
+      HashMap<String, String> installed = new HashMap<String, String>();
+      JsArray<PackageInfo> packages = state.getPackageList();
+      for (int i = 0; i < packages.length(); i++)
+      {
+         PackageInfo pkg = packages.get(i);
+         String version = installed.get(pkg.getName());
+         if (version == null || compareVersions(pkg.getVersion(), version) < 0)
+            installed.put(pkg.getName(), pkg.getVersion());
+      }
+      
+      // and evict only the packages which were removed or which no longer
+      // meet the version we recorded for them
+      Iterator<Map.Entry<String, String>> it = satisfied_.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry<String, String> entry = it.next();
+         String name = entry.getKey().substring(entry.getKey().indexOf('|') + 1);
+         String version = installed.get(name);
+         if (version == null || compareVersions(version, entry.getValue()) < 0)
+            it.remove();
+      }
    }
 
    public void withDataImportCSV(String userAction, final Command command)
@@ -513,7 +1212,7 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      withDependencies(
         "Preparing Import from CSV",
         userAction, 
-        dataImportCsvDependenciesArray(), 
+        dependencySet("data-import-csv"), 
         false,
         new CommandWithArg<Boolean>()
         {
@@ -527,26 +1226,12 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      );
    }
    
-   private ArrayList<Dependency> dataImportCsvDependencies()
-   {
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("readr", "1.1.0"));
-      deps.add(Dependency.cranPackage("Rcpp", "0.11.5"));
-      return deps;
-   }
-   
-   private Dependency[] dataImportCsvDependenciesArray()
-   {
-      ArrayList<Dependency> deps = dataImportCsvDependencies();
-      return deps.toArray(new Dependency[deps.size()]);
-   }
-   
    public void withDataImportSAV(String userAction, final Command command)
    {
      withDependencies(
         "Preparing Import from SPSS, SAS and Stata",
         userAction, 
-        dataImportSavDependenciesArray(), 
+        dependencySet("data-import-sav"), 
         false,
         new CommandWithArg<Boolean>()
         {
@@ -560,26 +1245,12 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      );
    }
    
-   private ArrayList<Dependency> dataImportSavDependencies()
-   {
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("haven", "0.2.0"));
-      deps.add(Dependency.cranPackage("Rcpp", "0.11.5"));
-      return deps;
-   }
-   
-   private Dependency[] dataImportSavDependenciesArray()
-   {
-      ArrayList<Dependency> deps = dataImportSavDependencies();
-      return deps.toArray(new Dependency[deps.size()]);
-   }
-
    public void withDataImportXLS(String userAction, final Command command)
    {
      withDependencies(
         "Preparing Import from Excel",
         userAction, 
-        dataImportXlsDependenciesArray(), 
+        dependencySet("data-import-xls"), 
         false,
         new CommandWithArg<Boolean>()
         {
@@ -593,26 +1264,12 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      );
    }
    
-   private ArrayList<Dependency> dataImportXlsDependencies()
-   {
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("readxl", "0.1.0"));
-      deps.add(Dependency.cranPackage("Rcpp", "0.11.5"));
-      return deps;
-   }
-   
-   private Dependency[] dataImportXlsDependenciesArray()
-   {
-      ArrayList<Dependency> deps = dataImportXlsDependencies();
-      return deps.toArray(new Dependency[deps.size()]);
-   }
-
    public void withDataImportXML(String userAction, final Command command)
    {
      withDependencies(
         "Preparing Import from XML",
         userAction, 
-        dataImportXmlDependenciesArray(), 
+        dependencySet("data-import-xml"), 
         false,
         new CommandWithArg<Boolean>()
         {
@@ -626,25 +1283,12 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      );
    }
    
-   private ArrayList<Dependency> dataImportXmlDependencies()
-   {
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("xml2", "0.1.2"));
-      return deps;
-   }
-   
-   private Dependency[] dataImportXmlDependenciesArray()
-   {
-      ArrayList<Dependency> deps = dataImportXmlDependencies();
-      return deps.toArray(new Dependency[deps.size()]);
-   }
-
    public void withDataImportJSON(String userAction, final Command command)
    {
      withDependencies(
         "Preparing Import from JSON",
         userAction, 
-        dataImportJsonDependenciesArray(), 
+        dependencySet("data-import-json"), 
         false,
         new CommandWithArg<Boolean>()
         {
@@ -658,25 +1302,12 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      );
    }
    
-   private ArrayList<Dependency> dataImportJsonDependencies()
-   {
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("jsonlite", "0.9.19"));
-      return deps;
-   }
-   
-   private Dependency[] dataImportJsonDependenciesArray()
-   {
-      ArrayList<Dependency> deps = dataImportJsonDependencies();
-      return deps.toArray(new Dependency[deps.size()]);
-   }
-
    public void withDataImportJDBC(String userAction, final Command command)
    {
      withDependencies(
         "Preparing Import from JDBC",
         userAction, 
-        dataImportJdbcDependenciesArray(), 
+        dependencySet("data-import-jdbc"), 
         false,
         new CommandWithArg<Boolean>()
         {
@@ -690,26 +1321,12 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      );
    }
    
-   private ArrayList<Dependency> dataImportJdbcDependencies()
-   {
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("RJDBC", "0.2-5"));
-      deps.add(Dependency.cranPackage("rJava", "0.4-15"));
-      return deps;
-   }
-   
-   private Dependency[] dataImportJdbcDependenciesArray()
-   {
-      ArrayList<Dependency> deps = dataImportJdbcDependencies();
-      return deps.toArray(new Dependency[deps.size()]);
-   }
-
    public void withDataImportODBC(String userAction, final Command command)
    {
      withDependencies(
         "Preparing Import from ODBC",
         userAction, 
-        dataImportOdbcDependenciesArray(), 
+        dependencySet("data-import-odbc"), 
         false,
         new CommandWithArg<Boolean>()
         {
@@ -723,25 +1340,12 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      );
    }
    
-   private ArrayList<Dependency> dataImportOdbcDependencies()
-   {
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("RODBC", "1.3-12"));
-      return deps;
-   }
-   
-   private Dependency[] dataImportOdbcDependenciesArray()
-   {
-      ArrayList<Dependency> deps = dataImportOdbcDependencies();
-      return deps.toArray(new Dependency[deps.size()]);
-   }
-
    public void withDataImportMongo(String userAction, final Command command)
    {
      withDependencies(
         "Preparing Import from Mongo DB",
         userAction, 
-        dataImportMongoDependenciesArray(), 
+        dependencySet("data-import-mongo"), 
         false,
         new CommandWithArg<Boolean>()
         {
@@ -755,34 +1359,12 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      );
    }
    
-   private ArrayList<Dependency> dataImportMongoDependencies()
-   {
-      ArrayList<Dependency> deps = new ArrayList<Dependency>();
-      deps.add(Dependency.cranPackage("mongolite", "0.8"));
-      deps.add(Dependency.cranPackage("jsonlite", "0.9.19"));
-      return deps;
-   }
-   
-   private Dependency[] dataImportMongoDependenciesArray()
-   {
-      ArrayList<Dependency> deps = dataImportMongoDependencies();
-      return deps.toArray(new Dependency[deps.size()]);
-   }
-
    public void withProfvis(String userAction, final Command command)
    {
      withDependencies(
         "Preparing Profiler",
         userAction, 
-        new Dependency[] {
-           Dependency.cranPackage("stringr", "0.6"),
-           Dependency.cranPackage("jsonlite", "0.9.19"),
-           Dependency.cranPackage("htmltools", "0.3"),
-           Dependency.cranPackage("yaml", "2.1.5"),
-           Dependency.cranPackage("htmlwidgets", "0.6", true),
-           Dependency.cranPackage("profvis", "0.3.2", true)
-          
-        }, 
+        dependencySet("profvis"), 
         true, // update profvis if needed
         new CommandWithArg<Boolean>()
         {
@@ -823,9 +1405,7 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      withDependencies(
         "Preparing Keyring",
         "Using keyring", 
-        new Dependency[] {
-           Dependency.cranPackage("keyring", "1.1.0", true)
-        }, 
+        dependencySet("keyring"), 
         true, // update keyring if needed
         new CommandWithArg<Boolean>()
         {
@@ -844,10 +1424,7 @@ public class DependencyManager implements InstallShinyEvent.Handler,
      withDependencies(
         "Preparing " + name,
         "Using " + name, 
-        new Dependency[] {
-           Dependency.cranPackage("odbc", "1.1.6"),
-           Dependency.cranPackage("rstudioapi", "0.10")
-        }, 
+        dependencySet("odbc"), 
         true, // update odbc if needed
         new CommandWithArg<Boolean>()
         {
@@ -864,15 +1441,10 @@ public class DependencyManager implements InstallShinyEvent.Handler,
    public void withTestPackage(final Command command, boolean useTestThat)
    {
       String message = "Using shinytest";
-      Dependency[] dependencies = new Dependency[] {
-         Dependency.cranPackage("shinytest", "1.3.1")
-      };
+      DependencySet dependencies = dependencySet("shinytest");
 
       if (useTestThat) {
-         dependencies = new Dependency[] {
-            Dependency.cranPackage("testthat", "2.0.0"),
-            Dependency.cranPackage("devtools", "1.11.1")
-         };
+         dependencies = dependencySet("testthat");
 
          message = "Using testthat";
       }
@@ -900,9 +1472,7 @@ public class DependencyManager implements InstallShinyEvent.Handler,
       withDependencies(
         "DBI",
          userAction,
-         new Dependency[] {
-            Dependency.cranPackage("DBI", "0.8")
-         },
+         dependencySet("dbi"),
          true,
          new CommandWithArg<Boolean>()
         {
@@ -921,10 +1491,7 @@ public class DependencyManager implements InstallShinyEvent.Handler,
       withDependencies(
         "RSQLite",
          userAction,
-         new Dependency[] {
-            Dependency.cranPackage("DBI", "0.8"),
-            Dependency.cranPackage("RSQLite", "2.1.0")
-         },
+         dependencySet("rsqlite"),
          true,
          new CommandWithArg<Boolean>()
         {
@@ -938,6 +1505,94 @@ public class DependencyManager implements InstallShinyEvent.Handler,
       );
    }
    
+   /**
+    * Warms the cache of satisfied dependencies by checking, in a single
+    * background RPC, every dependency in the "prefetch" set declared in
+    * dependencies.json (typically by including the sets for R Markdown,
+    * Shiny, data import, etc.). Nothing is installed and the user is never
+    * prompted; later requests for these features are simply answered from
+    * the cache where possible. Runs once at session init, and only if the
+    * set is declared.
+    */
+   private void prefetchDependencies()
+   {
+      // skip anything already known to be satisfied, and dependencies
+      // included by more than one of the prefetched sets
+      DependencySet set = dependencySet(PREFETCH_SET);
+      final JsArray<Dependency> deps = JsArray.createArray().cast();
+      HashSet<String> keys = new HashSet<String>();
+      for (int i = 0; i < set.size(); i++)
+      {
+         Dependency dep = set.get(i);
+         if (!isSatisfied(set.key(i), dep.getVersion()) && 
+             keys.add(dependencyKey(dep)))
+            deps.push(dep);
+      }
+      if (deps.length() == 0)
+         return;
+      
+      // embedded packages are never silently updated here, so that the
+      // check has no side effects
+      server_.unsatisfiedDependencies(
+            deps,
+            false,
+            new ServerRequestCallback<JsArray<Dependency>>()
+            {
+               @Override
+               public void onResponseReceived(JsArray<Dependency> unsatisfied)
+               {
+                  updateSatisfied(deps, unsatisfied);
+               }
+
+               @Override
+               public void onError(ServerError error)
+               {
+                  Debug.logError(error);
+               }
+            });
+   }
+   
+   /**
+    * Looks up a dependency set declared in dependencies.json.
+    * 
+    * @param name The name of the set
+    * @return The shared, immutable set
+    */
+   private static DependencySet dependencySet(String name)
+   {
+      return MANIFEST.get(name);
+   }
+   
+   /**
+    * Lists every dependency set declared in dependencies.json, in the order
+    * declared. Each dependency carries its minimum version and whether it is
+    * a CRAN or embedded package, so that machines can be provisioned ahead
+    * of time (see export-dependencies.R).
+    * 
+    * @return The dependency sets, keyed by name
+    */
+   public static Map<String, List<Dependency>> getDependencySets()
+   {
+      return MANIFEST.asMap();
+   }
+   
+   /**
+    * Adds a handler to be told of the progress of each package as
+    * dependencies are installed.
+    */
+   public void addInstallProgressHandler(InstallProgressHandler handler)
+   {
+      installProgressHandlers_.add(handler);
+   }
+   
+   /**
+    * Returns a snapshot of the dependency metrics collected so far.
+    */
+   public DependencyMetrics getMetrics()
+   {
+      return metrics_.copy();
+   }
+   
    public void installPackages(List<String> packageNames,
                                CommandWithArg<Boolean> onCompleted)
    {
@@ -947,7 +1602,63 @@ public class DependencyManager implements InstallShinyEvent.Handler,
       {
          dependencies.set(i, Dependency.cranPackage(packageNames.get(i)));
       }
-      installDependencies(dependencies, false, onCompleted);
+      
+      if (isInstallationDisabled())
+      {
+         showInstallationDisabledMessage(null, dependencies);
+         onCompleted.execute(false);
+         return;
+      }
+      
+      // once the repositories have been found to have none of the packages
+      // asked for, don't start an install which can only fail
+      if (repositoryUnavailable_)
+      {
+         showRepositoryUnavailableMessage(null, dependencies);
+         onCompleted.execute(false);
+         return;
+      }
+      
+      // packages we already know can't be found needn't be checked again
+      final JsArray<Dependency> unchecked = JsArray.createArray().cast();
+      for (int i = 0; i < n; i++)
+      {
+         if (!unavailable_.containsKey(dependencyKey(dependencies.get(i))))
+            unchecked.push(dependencies.get(i));
+      }
+      if (unchecked.length() == 0)
+      {
+         showRepositoryUnavailableMessage(null, dependencies);
+         onCompleted.execute(false);
+         return;
+      }
+      
+      server_.unsatisfiedDependencies(
+            unchecked,
+            false,
+            new ServerRequestCallback<JsArray<Dependency>>()
+            {
+               @Override
+               public void onResponseReceived(JsArray<Dependency> unsatisfied)
+               {
+                  recordUnavailable(unchecked, unsatisfied);
+                  if (noneAvailable(unsatisfied))
+                  {
+                     showRepositoryUnavailableMessage(null, dependencies);
+                     onCompleted.execute(false);
+                     return;
+                  }
+                  
+                  installDependencies(dependencies, false, onCompleted);
+               }
+
+               @Override
+               public void onError(ServerError error)
+               {
+                  Debug.logError(error);
+                  onCompleted.execute(false);
+               }
+            });
    }
 
    private Dependency[] connectionPackageDependenciesArray(String packageName,
@@ -959,193 +1670,721 @@ public class DependencyManager implements InstallShinyEvent.Handler,
       return deps.toArray(new Dependency[deps.size()]);
    }
    
-   private void withDependencies(String progressCaption,
+   private DependencyRequest withDependencies(String progressCaption,
          final String userAction,
          final CommandWith2Args<String,CommandWithArg<Boolean>> userPrompt,
-         Dependency[] dependencies, 
+         DependencySet dependencies, 
          final boolean silentEmbeddedUpdate,
          final CommandWithArg<Boolean> onComplete)
    {
-      // add the request to the queue rather than processing it right away; 
-      // this frees us of the burden of trying to de-dupe requests for the
-      // same packages which may occur simultaneously (since we also cache 
-      // results, all such duplicate requests will return simultaneously, fed
-      // by a single RPC)
-      requestQueue_.add(new DependencyRequest(progressCaption, userAction, 
-            userPrompt, dependencies, silentEmbeddedUpdate, 
-            new CommandWithArg<Boolean>()
+      return withDependencies(progressCaption, 
+                              userAction, 
+                              userPrompt, 
+                              dependencies, 
+                              silentEmbeddedUpdate, 
+                              false, 
+                              onComplete);
+   }
+   
+   private DependencyRequest withDependencies(String progressCaption,
+         final String userAction,
+         final CommandWith2Args<String,CommandWithArg<Boolean>> userPrompt,
+         DependencySet dependencies, 
+         final boolean silentEmbeddedUpdate,
+         final boolean background,
+         final CommandWithArg<Boolean> onComplete)
+   {
+      // checking dependencies has no side effects, so checks for independent
+      // requests are batched together into a single RPC rather than waiting
+      // on each other; only the phases which prompt the user and install
+      // packages are queued (see resolveUnsatisfiedDependencies)
+      DependencyRequest req = new DependencyRequest(progressCaption, 
+            userAction, userPrompt, dependencies, silentEmbeddedUpdate, 
+            background, onComplete);
+      processDependencyRequest(req);
+      return req;
+   }
+   
+   private void processRequestQueue()
+   {
+      // requests are resolved one at a time, and never while an install
+      // is running
+      if (processingQueue_ == true || installing_)
+         return;
+      
+      // skip over requests nobody is waiting on any more
+      while (!requestQueue_.isEmpty() && !requestQueue_.peek().isLive())
+         requestQueue_.pop();
+      
+      if (!requestQueue_.isEmpty())
+      {
+         processingQueue_ = true;
+         DependencyRequest req = requestQueue_.pop();
+         metrics_.getQueueWait().record(
+               System.currentTimeMillis() - req.queuedAt);
+         metrics_.recordQueueDepth(requestQueue_.size());
+         resolveUnsatisfiedDependencies(req);
+      }
+      else if (!pendingInstalls_.isEmpty())
+      {
+         // give requests whose checks are still in flight a moment to join
+         // the install
+         installTimer_.schedule(INSTALL_BATCH_WINDOW_MS);
+      }
+   }
+   
+   private void processDependencyRequest(final DependencyRequest req)
+   {
+      // convert dependencies to JsArray, excluding satisfied dependencies
+      // and setting aside those we already know can't be installed
+      req.unchecked = JsArray.createArray().cast();
+      req.unavailable = JsArray.createArray().cast();
+      for (int i = 0; i < req.dependencies.size(); i++)
+      {
+         Dependency dep = req.dependencies.get(i);
+         if (isSatisfied(req.dependencies.key(i), dep.getVersion()))
+         {
+            metrics_.recordCacheLookup(dep.getName(), true);
+            continue;
+         }
+         
+         Dependency unavailable = unavailable_.get(dependencyKey(dep));
+         metrics_.recordCacheLookup(dep.getName(), unavailable != null);
+         if (unavailable != null)
+            req.unavailable.push(unavailable);
+         else
+            req.unchecked.push(dep);
+      }
+      
+      // if no unsatisfied dependencies were found, we're done already
+      if (req.unchecked.length() == 0 && req.unavailable.length() == 0)
+      {
+         completeRequest(req, true);
+         return;
+      }
+      
+      // if the only unsatisfied dependencies are ones we already know to be
+      // unavailable, there's no need to ask the server again
+      if (req.unchecked.length() == 0)
+      {
+         enqueueUnsatisfied(req, req.unavailable);
+         return;
+      }
+
+      // hold the request briefly so that checks made at about the same time
+      // (e.g. by several panes during startup) are fed by a single RPC
+      pendingChecks_.add(req);
+      if (pendingChecks_.size() == 1)
+         checkTimer_.schedule(CHECK_BATCH_WINDOW_MS);
+   }
+   
+   private void flushPendingChecks()
+   {
+      // requests can only share an RPC if they agree on whether embedded
+      // packages should be silently updated
+      ArrayList<DependencyRequest> silentBatch = new ArrayList<DependencyRequest>();
+      ArrayList<DependencyRequest> batch = new ArrayList<DependencyRequest>();
+      for (DependencyRequest req: pendingChecks_)
+      {
+         // requests cancelled while waiting for the batch aren't checked
+         if (!req.isLive())
+            continue;
+         
+         if (req.silentEmbeddedUpdate)
+            silentBatch.add(req);
+         else
+            batch.add(req);
+      }
+      pendingChecks_.clear();
+      
+      if (!silentBatch.isEmpty())
+         checkDependencies(silentBatch, true);
+      if (!batch.isEmpty())
+         checkDependencies(batch, false);
+   }
+   
+   private void checkDependencies(final List<DependencyRequest> batch,
+                                  boolean silentEmbeddedUpdate)
+   {
+      // merge the dependencies of every request in the batch, sending each
+      // distinct dependency only once
+      final JsArray<Dependency> deps = JsArray.createArray().cast();
+      HashSet<String> keys = new HashSet<String>();
+      for (DependencyRequest req: batch)
+      {
+         for (int i = 0; i < req.unchecked.length(); i++)
+         {
+            if (keys.add(dependencyKey(req.unchecked.get(i))))
+               deps.push(req.unchecked.get(i));
+         }
+      }
+      
+      // create progress indicator
+      final ProgressIndicator progress = new GlobalProgressDelayer(
+            globalDisplay_,
+            250,
+            (batch.size() == 1 ? 
+                  batch.get(0).progressCaption : 
+                  "Checking installed packages") + "...").getIndicator();
+      
+      // if R doesn't answer in time (e.g. because it's busy with a long
+      // computation) each request fails once its own deadline has passed,
+      // rather than leaving its caller waiting indefinitely
+      for (final DependencyRequest req: batch)
+      {
+         req.deadline = new Timer()
+         {
+            @Override
+            public void run()
             {
-               @Override
-               public void execute(Boolean arg)
+               if (req.completed)
+                  return;
+               
+               Debug.log("Timed out after " + req.timeoutMs + 
+                         "ms checking dependencies");
+               completeRequest(req, false);
+               
+               boolean allTimedOut = true;
+               for (DependencyRequest other: batch)
+                  allTimedOut &= other.completed;
+               if (allTimedOut)
                {
-                  // complete the user action, if any
-                  onComplete.execute(arg);
+                  progress.onError(
+                        "Timed out while checking installed packages. " +
+                        "R may be busy; please try again once it has " +
+                        "finished.");
+               }
+            }
+         };
+         req.deadline.schedule(req.timeoutMs);
+      }
+      
+      // query for unsatisfied dependencies
+      final long checkStart = System.currentTimeMillis();
+      server_.unsatisfiedDependencies(
+            deps, silentEmbeddedUpdate, 
+            new ServerRequestCallback<JsArray<Dependency>>() {
 
-                  // process the next request in the queue
-                  processingQueue_ = false;
-                  processRequestQueue();
+         @Override
+         public void onResponseReceived(
+                              final JsArray<Dependency> unsatisfiedDeps)
+         {
+            metrics_.getCheckLatency().record(
+                  System.currentTimeMillis() - checkStart);
+            
+            // a late response is still worth recording, even if the
+            // requests it was for have already timed out
+            boolean timedOut = cancelDeadlines(batch);
+            if (!timedOut)
+               progress.onCompleted();
+            recordUnavailable(deps, unsatisfiedDeps);
+            
+            HashMap<String, Dependency> unsatisfied = 
+                  new HashMap<String, Dependency>();
+            for (int i = 0; i < unsatisfiedDeps.length(); i++)
+            {
+               Dependency dep = unsatisfiedDeps.get(i);
+               unsatisfied.put(dependencyKey(dep), dep);
+            }
+            
+            // route the results back to the requests they came from
+            for (DependencyRequest req: batch)
+            {
+               if (!req.isLive() || req.completed)
+                  continue;
+               
+               JsArray<Dependency> reqUnsatisfied = req.unavailable;
+               for (int i = 0; i < req.unchecked.length(); i++)
+               {
+                  Dependency dep = unsatisfied.get(
+                        dependencyKey(req.unchecked.get(i)));
+                  if (dep != null)
+                     reqUnsatisfied.push(dep);
+               }
+               
+               // if we've satisfied all dependencies then execute the command
+               if (reqUnsatisfied.length() == 0)
+               {
+                  completeRequest(req, true);
+                  continue;
+               }
+            
+               // otherwise queue the request to be resolved once any other
+               // request which is prompting or installing has completed
+               enqueueUnsatisfied(req, reqUnsatisfied);
+            }
+         }
+         
+         @Override
+         public void onError(ServerError error)
+         {
+            metrics_.getCheckLatency().record(
+                  System.currentTimeMillis() - checkStart);
+            if (!cancelDeadlines(batch))
+               progress.onError(error.getUserMessage());
+            for (DependencyRequest req: batch)
+               completeRequest(req, false);
+         }
+      });
+      
+   }
+   
+   // cancels the deadlines of a batch of requests whose check has
+   // returned, indicating whether all of them had already timed out
+   private boolean cancelDeadlines(List<DependencyRequest> batch)
+   {
+      boolean allTimedOut = true;
+      for (DependencyRequest req: batch)
+      {
+         if (req.deadline != null)
+         {
+            req.deadline.cancel();
+            req.deadline = null;
+         }
+         allTimedOut &= req.completed;
+      }
+      return allTimedOut;
+   }
+   
+   private void enqueueUnsatisfied(final DependencyRequest req,
+                                   JsArray<Dependency> unsatisfiedDeps)
+   {
+      req.unsatisfied = unsatisfiedDeps;
+      
+      // forget about requests which have been cancelled while queued
+      Iterator<DependencyRequest> it = requestQueue_.iterator();
+      while (it.hasNext())
+      {
+         if (!it.next().isLive())
+            it.remove();
+      }
+      
+      // a request for the same dependencies as one which is already queued
+      // (e.g. from a command invoked twice) waits on the outcome of the
+      // queued request, rather than prompting a second time
+      for (DependencyRequest queued: requestQueue_)
+      {
+         if (queued.canCoalesce(req))
+         {
+            queued.coalesced.add(req);
+            
+            // a request the user is waiting on is no longer held up behind
+            // other background requests
+            if (queued.background && !req.background)
+            {
+               queued.background = false;
+               requestQueue_.remove(queued);
+               insertQueued(queued);
+            }
+            return;
+         }
+      }
+      
+      // background requests beyond the bound are dropped oldest first;
+      // requests the user is waiting on are always accepted
+      if (requestQueue_.size() >= MAX_QUEUED_REQUESTS)
+      {
+         DependencyRequest dropped = null;
+         for (DependencyRequest queued: requestQueue_)
+         {
+            if (queued.background)
+            {
+               dropped = queued;
+               break;
+            }
+         }
+         if (dropped == null && req.background)
+            dropped = req;
+         
+         if (dropped != null)
+         {
+            requestQueue_.remove(dropped);
+            completeRequest(dropped, false);
+            if (dropped == req)
+               return;
+         }
+      }
+      
+      insertQueued(req);
+      processRequestQueue();
+   }
+   
+   private void insertQueued(DependencyRequest req)
+   {
+      if (req.queuedAt == 0)
+         req.queuedAt = System.currentTimeMillis();
+      metrics_.recordQueueDepth(requestQueue_.size() + 1);
+      
+      // requests the user is waiting on go ahead of background requests,
+      // but are otherwise resolved in the order they were made
+      if (!req.background)
+      {
+         ListIterator<DependencyRequest> it = requestQueue_.listIterator();
+         while (it.hasNext())
+         {
+            if (it.next().background)
+            {
+               it.previous();
+               it.add(req);
+               return;
+            }
+         }
+      }
+      requestQueue_.add(req);
+   }
+   
+   private void completeRequest(DependencyRequest req, boolean succeeded)
+   {
+      // requests are completed only once, so that a response arriving after
+      // a request has timed out doesn't complete it a second time
+      if (req.completed)
+         return;
+      req.completed = true;
+      metrics_.getRequestLatency().record(
+            System.currentTimeMillis() - req.createdAt);
+      
+      // complete the request and any coalesced into it, unless cancelled
+      if (!req.cancelled)
+         req.onComplete.execute(succeeded);
+      for (DependencyRequest follower: req.coalesced)
+      {
+         if (!follower.cancelled)
+            follower.onComplete.execute(succeeded);
+      }
+   }
+   
+   private void finishResolving(DependencyRequest req, boolean succeeded)
+   {
+      // complete the user action, if any
+      completeRequest(req, succeeded);
+      
+      // process the next request in the queue
+      processingQueue_ = false;
+      processRequestQueue();
+   }
+   
+   private void resolveUnsatisfiedDependencies(final DependencyRequest req)
+   {
+      // an install performed on behalf of a request ahead of this one in the
+      // queue may have satisfied some or all of its dependencies already
+      final JsArray<Dependency> unsatisfiedDeps = JsArray.createArray().cast();
+      for (int i = 0; i < req.unsatisfied.length(); i++)
+      {
+         if (!isSatisfied(req.unsatisfied.get(i)))
+            unsatisfiedDeps.push(req.unsatisfied.get(i));
+      }
+      if (unsatisfiedDeps.length() == 0)
+      {
+         finishResolving(req, true);
+         return;
+      }
+      
+      // if package installation is disabled, say so right away rather than
+      // prompting for an install which can only fail
+      if (isInstallationDisabled())
+      {
+         showInstallationDisabledMessage(req.userAction, unsatisfiedDeps);
+         finishResolving(req, false);
+         return;
+      }
+      
+      // if another request has already been confirmed to install everything
+      // this one needs, join its install rather than prompting again
+      boolean pendingInstall = true;
+      for (int i = 0; i < unsatisfiedDeps.length() && pendingInstall; i++)
+         pendingInstall = isPendingInstall(unsatisfiedDeps.get(i));
+      if (pendingInstall)
+      {
+         addPendingInstall(req, unsatisfiedDeps);
+         return;
+      }
+      
+      // check to see if we can satisfy the version requirement for all
+      // dependencies
+      String unsatisfiedVersions = "";
+      boolean anyAvailable = false;
+      for (int i = 0; i < unsatisfiedDeps.length(); i++)
+      {
+         String version = unsatisfiedDeps.get(i).getAvailableVersion();
+         anyAvailable |= !StringUtil.isNullOrEmpty(version);
+         if (!unsatisfiedDeps.get(i).getVersionSatisfied())
+         {
+            unsatisfiedVersions += unsatisfiedDeps.get(i).getName() + 
+                 " " + unsatisfiedDeps.get(i).getVersion();
+            if (version.isEmpty())
+               unsatisfiedVersions += " is not available\n";
+            else
+               unsatisfiedVersions += " is required but " + version + 
+                  " is available\n";
+         }
+      }
+      
+      if (!unsatisfiedVersions.isEmpty())
+      {
+         // error if we can't satisfy requirements
+         globalDisplay_.showErrorMessage(
+               StringUtil.isNullOrEmpty(req.userAction) ?
+                     "Packages Not Found" : req.userAction, 
+               "Required package versions could not be found:\n\n" +
+               unsatisfiedVersions + "\n" +
+               (anyAvailable ? "" : 
+                  "No version of these packages is available; the " +
+                  "package repositories may be empty or unreachable. ") +
+               "Check that getOption(\"repos\") refers to a CRAN " + 
+               "repository that contains the needed package versions.");
+         finishResolving(req, false);
+      }
+      else
+      {
+         // otherwise ask the user if they want to install the 
+         // unsatisifed dependencies
+         final CommandWithArg<Boolean> installCommand = 
+            new CommandWithArg<Boolean>() {
+            @Override
+            public void execute(Boolean confirmed)
+            {
+               // bail if user didn't confirm, or if the request was cancelled
+               // while the prompt was showing
+               if (!confirmed || !req.isLive())
+               {
+                  finishResolving(req, false);
+                  return;
                }
-            }));
+
+               addPendingInstall(req, unsatisfiedDeps);
+            }
+         };
+         
+         if (req.userPrompt != null)
+         {
+            req.userPrompt.execute(describeDepPkgs(unsatisfiedDeps), 
+                   new CommandWithArg<Boolean>()
+                   {
+                     @Override
+                     public void execute(Boolean arg)
+                     {
+                        installCommand.execute(arg);
+                     }
+                   });
+         }
+         else
+         {
+            confirmPackageInstallation(req.userAction, 
+                                       unsatisfiedDeps,
+                                       installCommand);
+         }
+      }
+   }
+   
+   private void addPendingInstall(DependencyRequest req,
+                                  JsArray<Dependency> unsatisfiedDeps)
+   {
+      // rather than installing right away, hold on to confirmed requests so
+      // that everything confirmed in the meantime is installed together
+      req.unsatisfied = unsatisfiedDeps;
+      pendingInstalls_.add(req);
+      mergePendingInstall(unsatisfiedDeps);
+      
+      processingQueue_ = false;
       processRequestQueue();
    }
    
-   private void processRequestQueue()
+   private void mergePendingInstall(JsArray<Dependency> unsatisfiedDeps)
    {
-      if (processingQueue_ == true || requestQueue_.isEmpty())
-         return;
-      processingQueue_ = true;
-      processDependencyRequest(requestQueue_.pop());
+      for (int i = 0; i < unsatisfiedDeps.length(); i++)
+      {
+         Dependency dep = unsatisfiedDeps.get(i);
+         String key = satisfiedKey(dep);
+         Dependency pending = pendingInstallDeps_.get(key);
+         if (pending == null || 
+             compareVersions(dep.getVersion(), pending.getVersion()) > 0)
+            pendingInstallDeps_.put(key, dep);
+      }
    }
    
-   private void processDependencyRequest(final DependencyRequest req)
+   private boolean isPendingInstall(Dependency dependency)
    {
-      // convert dependencies to JsArray, excluding satisfied dependencies
-      final JsArray<Dependency> deps = JsArray.createArray().cast();
-      for (int i = 0; i < req.dependencies.length; i++)
+      Dependency pending = pendingInstallDeps_.get(satisfiedKey(dependency));
+      return pending != null && 
+             compareVersions(dependency.getVersion(), pending.getVersion()) <= 0;
+   }
+   
+   private void installPendingDependencies()
+   {
+      if (processingQueue_ || installing_ || pendingInstalls_.isEmpty())
+         return;
+      
+      // requests cancelled since they were confirmed don't install anything
+      final List<DependencyRequest> batch = new ArrayList<DependencyRequest>();
+      for (DependencyRequest req: pendingInstalls_)
       {
-         boolean satisfied = false;
-         for (Dependency d: satisfied_)
-         {
-            if (req.dependencies[i].isEqualTo(d))
-            {
-               satisfied = true;
-               break;
-            }
-         }
-         if (!satisfied)
-            deps.push(req.dependencies[i]);
+         if (req.isLive())
+            batch.add(req);
       }
+      pendingInstalls_.clear();
       
-      // if no unsatisfied dependencies were found, we're done already
-      if (deps.length() == 0)
+      // the incoming JsArrays from the server may not serialize as expected
+      // when this code is executed from a satellite (see
+      // RemoteServer.sendRequestViaMainWorkbench), so we copy the merged
+      // dependencies into a new array before passing it to the installer
+      pendingInstallDeps_.clear();
+      for (DependencyRequest req: batch)
+         mergePendingInstall(req.unsatisfied);
+      JsArray<Dependency> dependencies = JsArray.createArray().cast();
+      for (Dependency dep: pendingInstallDeps_.values())
+         dependencies.push(dep);
+      pendingInstallDeps_.clear();
+      
+      if (batch.isEmpty())
       {
-         req.onComplete.execute(true);
+         processRequestQueue();
          return;
       }
-
-      // create progress indicator
-      final ProgressIndicator progress = new GlobalProgressDelayer(
-            globalDisplay_,
-            250,
-            req.progressCaption + "...").getIndicator();
       
-      // query for unsatisfied dependencies
-      server_.unsatisfiedDependencies(
-            deps, req.silentEmbeddedUpdate, 
-            new ServerRequestCallback<JsArray<Dependency>>() {
-
-         @Override
-         public void onResponseReceived(
-                              final JsArray<Dependency> unsatisfiedDeps)
-         {
-            progress.onCompleted();
-            updateSatisfied(deps, unsatisfiedDeps);
-            
-            // if we've satisfied all dependencies then execute the command
-            if (unsatisfiedDeps.length() == 0)
-            {
-               req.onComplete.execute(true);
-               return;
-            }
-            
-            // check to see if we can satisfy the version requirement for all
-            // dependencies
-            String unsatisfiedVersions = "";
-            for (int i = 0; i < unsatisfiedDeps.length(); i++)
+      boolean silentEmbeddedUpdate = false;
+      for (DependencyRequest req: batch)
+         silentEmbeddedUpdate |= req.silentEmbeddedUpdate;
+      
+      installing_ = true;
+      installDependencies(
+            dependencies,
+            silentEmbeddedUpdate,
+            new InstallProgressHandler()
             {
-               if (!unsatisfiedDeps.get(i).getVersionSatisfied())
+               @Override
+               public void onInstallProgress(String packageName,
+                                             PackageInstallState state,
+                                             long elapsedMs)
                {
-                  unsatisfiedVersions += unsatisfiedDeps.get(i).getName() + 
-                       " " + unsatisfiedDeps.get(i).getVersion();
-                  String version = unsatisfiedDeps.get(i).getAvailableVersion();
-                  if (version.isEmpty())
-                     unsatisfiedVersions += " is not available\n";
-                  else
-                     unsatisfiedVersions += " is required but " + version + 
-                        " is available\n";
-               }
-            }
-            
-            if (!unsatisfiedVersions.isEmpty())
-            {
-               // error if we can't satisfy requirements
-               globalDisplay_.showErrorMessage(
-                     StringUtil.isNullOrEmpty(req.userAction) ?
-                           "Packages Not Found" : req.userAction, 
-                     "Required package versions could not be found:\n\n" +
-                     unsatisfiedVersions + "\n" +
-                     "Check that getOption(\"repos\") refers to a CRAN " + 
-                     "repository that contains the needed package versions.");
-               req.onComplete.execute(false);
-            }
-            else
-            {
-               // otherwise ask the user if they want to install the 
-               // unsatisifed dependencies
-               final CommandWithArg<Boolean> installCommand = 
-                  new CommandWithArg<Boolean>() {
-                  @Override
-                  public void execute(Boolean confirmed)
+                  // fail every request needing a package that failed; R
+                  // reports dependents of a failed package as failing too
+                  if (state == PackageInstallState.FAILED)
                   {
-                     // bail if user didn't confirm
-                     if (!confirmed)
-                     {
-                        req.onComplete.execute(false);
-                        return;
-                     }
-
-                     // the incoming JsArray from the server may not serialize
-                     // as expected when this code is executed from a satellite
-                     // (see RemoteServer.sendRequestViaMainWorkbench), so we
-                     // clone it before passing to the dependency installer
-                     JsArray<Dependency> newArray = JsArray.createArray().cast();
-                     newArray.setLength(unsatisfiedDeps.length());
-                     for (int i = 0; i < unsatisfiedDeps.length(); i++)
+                     for (DependencyRequest req: batch)
                      {
-                        newArray.set(i, unsatisfiedDeps.get(i));
+                        if (req.completed)
+                           continue;
+                        for (int i = 0; i < req.unsatisfied.length(); i++)
+                        {
+                           if (req.unsatisfied.get(i).getName().equals(packageName))
+                           {
+                              completeRequest(req, false);
+                              break;
+                           }
+                        }
                      }
-                     installDependencies(
-                           newArray, 
-                           req.silentEmbeddedUpdate, 
-                           req.onComplete);
+                     return;
                   }
-               };
-               
-               if (req.userPrompt != null)
+                  
+                  if (state != PackageInstallState.INSTALLED)
+                     return;
+                  
+                  // requests whose own packages have all landed can go
+                  // ahead without waiting for the rest of the batch
+                  for (DependencyRequest req: batch)
+                  {
+                     if (req.completed)
+                        continue;
+                     boolean satisfied = true;
+                     for (int i = 0; i < req.unsatisfied.length() && satisfied; i++)
+                        satisfied = isSatisfied(req.unsatisfied.get(i));
+                     if (satisfied)
+                        completeRequest(req, true);
+                  }
+               }
+            },
+            new ServerRequestCallback<JsArray<Dependency>>()
+            {
+               @Override
+               public void onResponseReceived(JsArray<Dependency> unsatisfied)
                {
-                  req.userPrompt.execute(describeDepPkgs(unsatisfiedDeps), 
-                         new CommandWithArg<Boolean>()
-                         {
-                           @Override
-                           public void execute(Boolean arg)
-                           {
-                              installCommand.execute(arg);
-                           }
-                         });
+                  // each request succeeds if everything it needed has now
+                  // been recorded as satisfied, regardless of whether the
+                  // other packages in the batch installed
+                  installing_ = false;
+                  for (DependencyRequest req: batch)
+                  {
+                     boolean succeeded = true;
+                     for (int i = 0; i < req.unsatisfied.length() && succeeded; i++)
+                        succeeded = isSatisfied(req.unsatisfied.get(i));
+                     completeRequest(req, succeeded);
+                  }
+                  processRequestQueue();
                }
-               else
+               
+               @Override
+               public void onError(ServerError error)
                {
-                  confirmPackageInstallation(req.userAction, 
-                                             unsatisfiedDeps,
-                                             installCommand);
+                  installing_ = false;
+                  for (DependencyRequest req: batch)
+                     completeRequest(req, false);
+                  processRequestQueue();
                }
-            }
-         }
-         
-         @Override
-         public void onError(ServerError error)
-         {
-            progress.onError(error.getUserMessage());
-            req.onComplete.execute(false);
-         }
-      });
-      
+            });
    }
    
    private void installDependencies(final JsArray<Dependency> dependencies,
                                     final boolean silentEmbeddedUpdate,
                                     final CommandWithArg<Boolean> onComplete)
    {
+      installDependencies(
+            dependencies,
+            silentEmbeddedUpdate,
+            null,
+            new ServerRequestCallback<JsArray<Dependency>>()
+            {
+               @Override
+               public void onResponseReceived(JsArray<Dependency> unsatisfied)
+               {
+                  onComplete.execute(unsatisfied.length() == 0);
+               }
+               
+               @Override
+               public void onError(ServerError error)
+               {
+                  onComplete.execute(false);
+               }
+            });
+   }
+   
+   /**
+    * Installs dependencies, recording those which were installed in the
+    * cache of satisfied dependencies.
+    * 
+    * @param dependencies The dependencies to install
+    * @param silentEmbeddedUpdate Whether embedded packages may be updated
+    *   silently when verifying a failed install
+    * @param progressHandler If not null, told of each package's progress
+    *   as the install proceeds, after it has been recorded
+    * @param callback Receives the dependencies which remain unsatisfied
+    *   once the install process has exited
+    */
+   private void installDependencies(
+         final JsArray<Dependency> dependencies,
+         final boolean silentEmbeddedUpdate,
+         final InstallProgressHandler progressHandler,
+         final ServerRequestCallback<JsArray<Dependency>> callback)
+   {
+      // if R doesn't start the install in time, give up on it so that the
+      // requests queued behind it can go ahead; should the install start
+      // after all, it's still shown, but no longer reported to the callback
+      final boolean[] timedOut = new boolean[] { false };
+      final Timer deadline = new Timer()
+      {
+         @Override
+         public void run()
+         {
+            timedOut[0] = true;
+            globalDisplay_.showErrorMessage(
+                  "Dependency installation failed",
+                  "Timed out waiting for R to start installing packages. " +
+                  "R may be busy; please try again once it has finished.");
+            callback.onResponseReceived(dependencies);
+         }
+      };
+      deadline.schedule(DEFAULT_REQUEST_TIMEOUT_MS);
+      
+      final long installStart = System.currentTimeMillis();
       server_.installDependencies(
          dependencies, 
          new ServerRequestCallback<ConsoleProcess>() {
@@ -1153,9 +2392,56 @@ public class DependencyManager implements InstallShinyEvent.Handler,
             @Override
             public void onResponseReceived(ConsoleProcess proc)
             {   
+               deadline.cancel();
+               metrics_.getInstallLatency().record(
+                     System.currentTimeMillis() - installStart);
+               
                final ConsoleProgressDialog dialog = 
                      new ConsoleProgressDialog(proc, server_);
                dialog.showModal();
+               
+               // follow each package through the install, recording those
+               // which land so they're known to be satisfied straight away
+               final InstallProgress progress = new InstallProgress(
+                     new InstallProgressHandler()
+                     {
+                        @Override
+                        public void onInstallProgress(String packageName,
+                                                      PackageInstallState state,
+                                                      long elapsedMs)
+                        {
+                           if (state == PackageInstallState.INSTALLED)
+                           {
+                              metrics_.recordInstallDuration(packageName, 
+                                                             elapsedMs);
+                              for (int i = 0; i < dependencies.length(); i++)
+                              {
+                                 if (dependencies.get(i).getName().equals(packageName))
+                                    recordInstalled(dependencies.get(i));
+                              }
+                           }
+                           
+                           if (progressHandler != null && !timedOut[0])
+                           {
+                              progressHandler.onInstallProgress(
+                                    packageName, state, elapsedMs);
+                           }
+                           for (InstallProgressHandler handler: 
+                                   installProgressHandlers_)
+                           {
+                              handler.onInstallProgress(
+                                    packageName, state, elapsedMs);
+                           }
+                        }
+                     });
+               proc.addConsoleOutputHandler(new ConsoleOutputEvent.Handler()
+               {
+                  @Override
+                  public void onConsoleOutput(ConsoleOutputEvent event)
+                  {
+                     progress.onOutput(event.getOutput());
+                  }
+               });
    
                proc.addProcessExitHandler(
                   new ProcessExitEvent.Handler()
@@ -1163,14 +2449,51 @@ public class DependencyManager implements InstallShinyEvent.Handler,
                      @Override
                      public void onProcessExit(ProcessExitEvent event)
                      {
-                        ifDependenciesSatisifed(dependencies, 
+                        // packages whose progress couldn't be followed are
+                        // attributed the duration of the whole install
+                        long duration = System.currentTimeMillis() - installStart;
+                        for (int i = 0; i < dependencies.length(); i++)
+                        {
+                           String name = dependencies.get(i).getName();
+                           if (!progress.getStates().containsKey(name))
+                              metrics_.recordInstallDuration(name, duration);
+                        }
+                        
+                        // install.packages() only warns when a package fails
+                        // to install, so the exit code doesn't tell us which
+                        // packages made it; those the install output showed
+                        // landing have already been recorded, and anything
+                        // else is checked with R
+                        final JsArray<Dependency> unconfirmed = 
+                              JsArray.createArray().cast();
+                        for (int i = 0; i < dependencies.length(); i++)
+                        {
+                           if (progress.getStates().get(dependencies.get(i).getName()) !=
+                                 PackageInstallState.INSTALLED)
+                              unconfirmed.push(dependencies.get(i));
+                        }
+                        
+                        if (unconfirmed.length() == 0)
+                        {
+                           dialog.hide();
+                           if (!timedOut[0])
+                           {
+                              JsArray<Dependency> none = 
+                                    JsArray.createArray().cast();
+                              callback.onResponseReceived(none);
+                           }
+                           return;
+                        }
+                        
+                        ifDependenciesSatisifed(unconfirmed, 
                               silentEmbeddedUpdate, 
-                              new CommandWithArg<Boolean>(){
+                              new CommandWithArg<JsArray<Dependency>>(){
                            @Override
-                           public void execute(Boolean succeeded)
+                           public void execute(JsArray<Dependency> unsatisfied)
                            {
                               dialog.hide();
-                              onComplete.execute(succeeded);
+                              if (!timedOut[0])
+                                 callback.onResponseReceived(unsatisfied);
                            }
                         });     
                      }
@@ -1180,41 +2503,148 @@ public class DependencyManager implements InstallShinyEvent.Handler,
             @Override
             public void onError(ServerError error)
             {
+               deadline.cancel();
+               metrics_.getInstallLatency().record(
+                     System.currentTimeMillis() - installStart);
+               if (timedOut[0])
+                  return;
+               
                Debug.logError(error);
                globalDisplay_.showErrorMessage(
                      "Dependency installation failed",
                      error.getUserMessage());
-               onComplete.execute(false);
+               callback.onError(error);
             }
          });
    }
    
-   private void ifDependenciesSatisifed(JsArray<Dependency> dependencies,
+   private void ifDependenciesSatisifed(final JsArray<Dependency> dependencies,
                                 boolean silentEmbeddedUpdate,
-                                final CommandWithArg<Boolean> onComplete)
+                                final CommandWithArg<JsArray<Dependency>> onComplete)
    {
+      // if R doesn't answer in time, treat every dependency as unsatisfied
+      // rather than leaving the install dialog up indefinitely
+      final boolean[] timedOut = new boolean[] { false };
+      final Timer deadline = new Timer()
+      {
+         @Override
+         public void run()
+         {
+            timedOut[0] = true;
+            Debug.log("Timed out after " + DEFAULT_REQUEST_TIMEOUT_MS + 
+                      "ms verifying installed dependencies");
+            onComplete.execute(dependencies);
+         }
+      };
+      deadline.schedule(DEFAULT_REQUEST_TIMEOUT_MS);
+      
+      final long checkStart = System.currentTimeMillis();
       server_.unsatisfiedDependencies(
         dependencies, silentEmbeddedUpdate, 
         new ServerRequestCallback<JsArray<Dependency>>() {
            
            @Override
-           public void onResponseReceived(JsArray<Dependency> dependencies)
+           public void onResponseReceived(JsArray<Dependency> unsatisfied)
            {
-              onComplete.execute(dependencies.length() == 0);
+              deadline.cancel();
+              metrics_.getCheckLatency().record(
+                    System.currentTimeMillis() - checkStart);
+              updateSatisfied(dependencies, unsatisfied);
+              if (!timedOut[0])
+                 onComplete.execute(unsatisfied);
            }
 
            @Override
            public void onError(ServerError error)
            {
+              deadline.cancel();
+              metrics_.getCheckLatency().record(
+                    System.currentTimeMillis() - checkStart);
+              if (timedOut[0])
+                 return;
+              
               Debug.logError(error);
               globalDisplay_.showErrorMessage(
                     "Could not determine available packages",
                     error.getUserMessage());
-              onComplete.execute(false);
+              onComplete.execute(dependencies);
            }
         });
    }
    
+   /**
+    * Determines whether package installation has been disabled for this
+    * session. Repositories which are empty or unreachable are detected
+    * separately, when packages are checked (see recordUnavailable).
+    */
+   private boolean isInstallationDisabled()
+   {
+      SessionInfo sessionInfo = session_.getSessionInfo();
+      return sessionInfo != null && !sessionInfo.getAllowPackageInstallation();
+   }
+   
+   /**
+    * Records the result of a dependency check: the dependencies which were
+    * satisfied, the versions the repositories can't provide (so we needn't
+    * look for them again), and whether the repositories appear to be empty
+    * or unreachable. That's only assumed when none of the packages which
+    * were missing has any version available, and is forgotten as soon as
+    * any check finds one, or the library changes.
+    * 
+    * @param all The dependencies which were checked
+    * @param unsatisfied The dependencies which were found unsatisfied
+    */
+   private void recordUnavailable(JsArray<Dependency> all,
+                                  JsArray<Dependency> unsatisfied)
+   {
+      updateSatisfied(all, unsatisfied);
+      for (int i = 0; i < unsatisfied.length(); i++)
+      {
+         Dependency dep = unsatisfied.get(i);
+         if (!dep.getVersionSatisfied())
+            unavailable_.put(dependencyKey(dep), dep);
+      }
+      if (unsatisfied.length() > 0)
+         repositoryUnavailable_ = noneAvailable(unsatisfied);
+   }
+   
+   private boolean noneAvailable(JsArray<Dependency> dependencies)
+   {
+      if (dependencies.length() == 0)
+         return false;
+      for (int i = 0; i < dependencies.length(); i++)
+      {
+         if (!StringUtil.isNullOrEmpty(dependencies.get(i).getAvailableVersion()))
+            return false;
+      }
+      return true;
+   }
+   
+   private void showRepositoryUnavailableMessage(String userAction,
+                                   JsArray<Dependency> dependencies)
+   {
+      globalDisplay_.showErrorMessage(
+            StringUtil.isNullOrEmpty(userAction) ?
+                  "Packages Not Found" : userAction,
+            "The following packages could not be found:\n\n" +
+            describeDepPkgs(dependencies) + "\n\n" +
+            "No version of these packages is available; the package " +
+            "repositories may be empty or unreachable. Check that " +
+            "getOption(\"repos\") refers to a CRAN repository that " +
+            "contains the needed packages.");
+   }
+   
+   private void showInstallationDisabledMessage(String userAction,
+                                   JsArray<Dependency> dependencies)
+   {
+      globalDisplay_.showErrorMessage(
+            StringUtil.isNullOrEmpty(userAction) ?
+                  "Packages Not Installed" : userAction,
+            "The following packages are required but are not installed:\n\n" +
+            describeDepPkgs(dependencies) + "\n\n" +
+            "Package installation has been disabled in this environment.");
+   }
+   
    private void confirmPackageInstallation(
       String userAction, 
       final JsArray<Dependency> dependencies,
@@ -1276,14 +2706,11 @@ public class DependencyManager implements InstallShinyEvent.Handler,
                                            final ServerRequestCallback<JsArray<Dependency>> requestCallback)
    {
       // determine if already satisfied
-      for (Dependency d: satisfied_)
+      if (isSatisfied(dependency))
       {
-         if (d.isEqualTo(dependency))
-         {
-            JsArray<Dependency> empty = JsArray.createArray().cast();
-            requestCallback.onResponseReceived(empty);
-            return;
-         }
+         JsArray<Dependency> empty = JsArray.createArray().cast();
+         requestCallback.onResponseReceived(empty);
+         return;
       }
 
       List<Dependency> dependencies = new ArrayList<Dependency>();
@@ -1320,7 +2747,9 @@ public class DependencyManager implements InstallShinyEvent.Handler,
    }
    
    /**
-    * Updates the cache of satisfied dependencies.
+    * Updates the cache of satisfied dependencies. Runs in time linear in the
+    * number of dependencies; recording a dependency already in the cache
+    * leaves a single entry for its package.
     * 
     * @param all The dependencies that were requested
     * @param unsatisfied The dependencies that were not satisfied
@@ -1328,29 +2757,245 @@ public class DependencyManager implements InstallShinyEvent.Handler,
    private void updateSatisfied(JsArray<Dependency> all, 
                                 JsArray<Dependency> unsatisfied)
    {
+      HashSet<String> unsatisfiedKeys = new HashSet<String>();
+      for (int i = 0; i < unsatisfied.length(); i++)
+         unsatisfiedKeys.add(dependencyKey(unsatisfied.get(i)));
+      
       for (int i = 0; i < all.length(); i++)
       {
-         boolean satisfied = true;
-         for (int j = 0; j < unsatisfied.length(); j++)
+         if (!unsatisfiedKeys.contains(dependencyKey(all.get(i))))
+            recordSatisfied(all.get(i));
+      }
+   }
+   
+   /**
+    * Records a satisfied dependency in the cache. Only the highest minimum
+    * version verified for each package is kept, since any request for that
+    * version or a lower one is satisfied by the same installation.
+    * 
+    * @param dependency The dependency that was satisfied
+    */
+   private void recordSatisfied(Dependency dependency)
+   {
+      recordSatisfied(satisfiedKey(dependency), dependency.getVersion());
+   }
+   
+   /**
+    * Records a dependency which was just installed. The version installed is
+    * the one the server reported as available, which may be higher than the
+    * minimum version that was requested.
+    * 
+    * @param dependency The dependency that was installed
+    */
+   private void recordInstalled(Dependency dependency)
+   {
+      String version = dependency.getAvailableVersion();
+      if (StringUtil.isNullOrEmpty(version))
+         version = dependency.getVersion();
+      recordSatisfied(satisfiedKey(dependency), version);
+   }
+   
+   private void recordSatisfied(String key, String version)
+   {
+      String satisfiedVersion = satisfied_.get(key);
+      if (satisfiedVersion == null || compareVersions(version, satisfiedVersion) > 0)
+         satisfied_.put(key, version);
+   }
+   
+   /**
+    * Connects the cache of satisfied dependencies to persistent client state,
+    * so that it survives from one session to the next. The state is kept per
+    * project, since each project may have its own library (e.g. with renv or
+    * packrat). Packages may have been removed or downgraded outside the IDE
+    * since the entries were stored, so restored entries are verified with a
+    * single check before they are trusted.
+    */
+   private void initPersistedSatisfied()
+   {
+      if (persistedSatisfied_ != null)
+         return;
+      
+      persistedSatisfied_ = new JSObjectStateValue(
+            "dependency-manager",
+            "satisfied",
+            ClientState.PROJECT_PERSISTENT,
+            session_.getSessionInfo().getClientState(),
+            false)
+      {
+         @Override
+         protected void onInit(JsObject value)
          {
-            if (unsatisfied.get(j).isEqualTo(all.get(i)))
+            if (value == null)
+               return;
+            
+            JsObject satisfied = value.getObject("satisfied");
+            if (satisfied == null)
+               return;
+            
+            JsArrayString keys = satisfied.keys();
+            final JsArray<Dependency> deps = JsArray.createArray().cast();
+            for (int i = 0; i < keys.length(); i++)
             {
-               satisfied = false;
-               break;
+               String key = keys.get(i);
+               String name = key.substring(key.indexOf('|') + 1);
+               Dependency embedded = Dependency.embeddedPackage(name);
+               if (key.equals(satisfiedKey(embedded)))
+                  deps.push(embedded);
+               else
+                  deps.push(Dependency.cranPackage(name, 
+                                                   satisfied.getString(key)));
             }
+            if (deps.length() == 0)
+               return;
+            
+            // embedded packages are never silently updated here, so that the
+            // check has no side effects
+            server_.unsatisfiedDependencies(
+                  deps,
+                  false,
+                  new ServerRequestCallback<JsArray<Dependency>>()
+                  {
+                     @Override
+                     public void onResponseReceived(JsArray<Dependency> unsatisfied)
+                     {
+                        updateSatisfied(deps, unsatisfied);
+                     }
+
+                     @Override
+                     public void onError(ServerError error)
+                     {
+                        Debug.logError(error);
+                     }
+                  });
          }
-         if (satisfied)
+
+         @Override
+         protected JsObject getValue()
          {
-            satisfied_.add(all.get(i));
+            JsObject satisfied = JsObject.createJsObject();
+            for (Map.Entry<String, String> entry: satisfied_.entrySet())
+               satisfied.setString(entry.getKey(), entry.getValue());
+            
+            JsObject value = JsObject.createJsObject();
+            value.setObject("satisfied", satisfied);
+            return value;
          }
+      };
+   }
+   
+   /**
+    * Checks the cache of satisfied dependencies for a dependency.
+    * 
+    * @param dependency The dependency to look up
+    * @return Whether a version at least as high as the one requested is
+    *   known to be satisfied
+    */
+   private boolean isSatisfied(Dependency dependency)
+   {
+      return isSatisfied(satisfiedKey(dependency), dependency.getVersion());
+   }
+   
+   private boolean isSatisfied(String key, String version)
+   {
+      String satisfiedVersion = satisfied_.get(key);
+      return satisfiedVersion != null && 
+             compareVersions(version, satisfiedVersion) <= 0;
+   }
+   
+   /**
+    * Computes the key under which a package is stored in the cache of
+    * satisfied dependencies. The minimum version is deliberately not part
+    * of the key; it is the value stored under it.
+    * 
+    * @param dependency The dependency to compute a key for
+    * @return The cache key
+    */
+   private static String satisfiedKey(Dependency dependency)
+   {
+      return dependency.getLocation() + "|" + dependency.getName();
+   }
+   
+   /**
+    * Computes a key identifying a dependency exactly; two dependencies share
+    * a key when isEqualTo() considers them equal.
+    * 
+    * @param dependency The dependency to compute a key for
+    * @return The dependency key
+    */
+   private static String dependencyKey(Dependency dependency)
+   {
+      return satisfiedKey(dependency) + "|" + 
+             dependency.getVersion() + "|" + 
+             dependency.getSource();
+   }
+   
+   /**
+    * Compares two R package version strings component by component, in the
+    * manner of R's package_version(); components are separated by '.' or
+    * '-', and a version that is a prefix of another sorts before it.
+    * 
+    * @return A negative number, zero, or a positive number as the first
+    *   version is lower than, equal to, or higher than the second
+    */
+   private static int compareVersions(String lhs, String rhs)
+   {
+      String[] lhsParts = versionComponents(lhs);
+      String[] rhsParts = versionComponents(rhs);
+      int n = Math.min(lhsParts.length, rhsParts.length);
+      for (int i = 0; i < n; i++)
+      {
+         int diff = versionComponent(lhsParts[i]) - versionComponent(rhsParts[i]);
+         if (diff != 0)
+            return diff;
+      }
+      return lhsParts.length - rhsParts.length;
+   }
+   
+   private static String[] versionComponents(String version)
+   {
+      if (StringUtil.isNullOrEmpty(version))
+         return new String[0];
+      return version.split("[.-]");
+   }
+   
+   private static int versionComponent(String component)
+   {
+      try
+      {
+         return Integer.parseInt(component);
+      }
+      catch (NumberFormatException e)
+      {
+         return 0;
       }
    }
    
    private boolean processingQueue_ = false;
    private final LinkedList<DependencyRequest> requestQueue_;
+   private final ArrayList<DependencyRequest> pendingChecks_;
+   private final Timer checkTimer_;
+   private boolean installing_ = false;
+   private final ArrayList<DependencyRequest> pendingInstalls_;
+   private final LinkedHashMap<String, Dependency> pendingInstallDeps_;
+   private final Timer installTimer_;
    private final GlobalDisplay globalDisplay_;
    private final DependencyServerOperations server_;
-   private final ArrayList<Dependency> satisfied_;
+   private final HashMap<String, String> satisfied_;
+   private final HashMap<String, Dependency> unavailable_;
+   private boolean repositoryUnavailable_ = false;
    private final Session session_;
    private final Commands commands_;
+   private JSObjectStateValue persistedSatisfied_;
+   private final DependencyMetrics metrics_;
+   private final ArrayList<InstallProgressHandler> installProgressHandlers_;
+   
+   private static final String PREFETCH_SET = "prefetch";
+   private static final int CHECK_BATCH_WINDOW_MS = 50;
+   private static final int INSTALL_BATCH_WINDOW_MS = 250;
+   private static final int MAX_QUEUED_REQUESTS = 16;
+   private static final int DEFAULT_REQUEST_TIMEOUT_MS = 60000;
+   private static final int METRICS_LOG_INTERVAL_MS = 5 * 60 * 1000;
+   
+   private static final DependencyManifest MANIFEST = new DependencyManifest(
+         GWT.<Resources>create(Resources.class).dependencies().getText());
 }
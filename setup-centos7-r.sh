@@ -82,15 +82,28 @@ chmod 755 ~/Desktop/RStudio.desktop
 ############### Add and update R packages
 
 # Warning: When taking RStudio Offline it's important that we double check that
-# all dependencies are pre-installed RStudio's dependency manager does
+# all dependencies are pre-installed. RStudio's own dependency manager does
 # _not_ export a list of dependencies.
 #
-# The list of dependencies can be found here:
-# https://github.com/rstudio/rstudio/blob/master/src/gwt/src/org/rstudio/studio/client/common/dependencies/DependencyManager.java
+# The list of dependencies can be exported with:
+# Rscript rstudio-dependencies/export-dependencies.R --closure \
+#     --repos https://cloud.r-project.org
 
 # Run the script with sudo to write to `/usr/lib64/R/library`
+#
+# Packages built from source are cached as binaries in /opt/r-pkg-cache and
+# installed from there on later runs. To share one cache across machines,
+# point R_PKG_CACHE at a shared mount, e.g.
+# sudo R_PKG_CACHE=/mnt/r-pkg-cache Rscript r-pkg-install.R
 sudo Rscript r-pkg-install.R
 
+# Check that every package RStudio's dependency manager asks for is now
+# installed, as none can be installed once CRAN is disabled below.
+# Each unsatisfied package is listed with the version that is required.
+if ! Rscript rstudio-dependencies/check-dependencies.R; then
+    echo "Warning: Some packages needed by RStudio are missing or outdated."
+fi
+
 # Clean up by removing the script
 rm -rf r-pkg-install.R
 